@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+/**
+ * Snapshot of counters of resource content cache, see {@link Storage#setCacheSizeInBytes(long)}
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public final class CacheStats {
+
+    static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0);
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int entries;
+    private final long sizeInBytes;
+
+    CacheStats(long hits, long misses, long evictions, int entries, long sizeInBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.entries = entries;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Entries removed because cache was full (invalidated entries are not counted)
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats [hits: " + hits
+                + ", misses: " + misses
+                + ", evictions: " + evictions
+                + ", entries: " + entries
+                + ", sizeInBytes: " + sizeInBytes + "]";
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import org.cuberact.storage.deferred.DeferredTask;
+
+/**
+ * Policy of {@link Resource#writeDeferred(byte[], DeferPolicy)}
+ * <ul>
+ * <li>delay - trailing debounce, resource is written after delay since its last change</li>
+ * <li>max wait - resource changed continuously is written at least once per max wait</li>
+ * <li>max size - content of at least max size bytes is written without delay (bounds memory held by waiting writes)</li>
+ * </ul>
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public final class DeferPolicy {
+
+    public static final long UNLIMITED = -1;
+
+    private final long delayInMilliseconds;
+    private final long maxWaitInMilliseconds;
+    private final long maxSizeInBytes;
+
+    private DeferPolicy(long delayInMilliseconds, long maxWaitInMilliseconds, long maxSizeInBytes) {
+        if (delayInMilliseconds < 0) {
+            throw new IllegalArgumentException("Delay can't be negative, was " + delayInMilliseconds);
+        }
+        this.delayInMilliseconds = delayInMilliseconds;
+        this.maxWaitInMilliseconds = maxWaitInMilliseconds;
+        this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    public static DeferPolicy debounce(long delayInMilliseconds) {
+        return new DeferPolicy(delayInMilliseconds, UNLIMITED, UNLIMITED);
+    }
+
+    /**
+     * Debounce with {@link DeferredTask#DEFERRED_DELAY_IN_MILLISECONDS}
+     */
+    public static DeferPolicy defaultPolicy() {
+        return debounce(DeferredTask.DEFERRED_DELAY_IN_MILLISECONDS);
+    }
+
+    /**
+     * Resource is written at least once per max wait, even if it's changed more often than delay
+     */
+    public DeferPolicy withMaxWait(long maxWaitInMilliseconds) {
+        return new DeferPolicy(delayInMilliseconds, maxWaitInMilliseconds, maxSizeInBytes);
+    }
+
+    /**
+     * Content of at least max size bytes is written without delay
+     */
+    public DeferPolicy withMaxSize(long maxSizeInBytes) {
+        return new DeferPolicy(delayInMilliseconds, maxWaitInMilliseconds, maxSizeInBytes);
+    }
+
+    public long getDelayInMilliseconds() {
+        return delayInMilliseconds;
+    }
+
+    public long getMaxWaitInMilliseconds() {
+        return maxWaitInMilliseconds;
+    }
+
+    public long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * @param size size of content in bytes, negative if unknown
+     */
+    long getDelayInMilliseconds(long size) {
+        return maxSizeInBytes >= 0 && size >= maxSizeInBytes ? 0 : delayInMilliseconds;
+    }
+
+    @Override
+    public String toString() {
+        return "DeferPolicy [delay: " + delayInMilliseconds
+                + ", maxWait: " + maxWaitInMilliseconds
+                + ", maxSize: " + maxSizeInBytes + "]";
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+/**
+ * What is guaranteed when write returns, see {@link WriteOptions}
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public enum Durability {
+    /**
+     * Nothing more than before (ZIP archive is rewritten when zip file system is unmounted after idle timeout)
+     */
+    NONE,
+    /**
+     * Content is handed to operating system (survives killed process), ZIP archive is rewritten before write returns
+     * (write waits until other threads release the archive, it fails inside open session of the archive).
+     * Deferred write doesn't wait, ZIP archive used by other threads is rewritten (and synced) when they release it.
+     */
+    FLUSH,
+    /**
+     * File (or ZIP archive) is synced to disk
+     */
+    FSYNC_FILE,
+    /**
+     * File and its directory are synced to disk (new or replaced file survives power loss)
+     */
+    FSYNC_FILE_AND_DIR
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+/**
+ * Options of {@link Storage#findResources(String, FindOptions)}
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public final class FindOptions {
+
+    private static final FindOptions SEQUENTIAL = new FindOptions(false, false);
+    private static final FindOptions PARALLEL = new FindOptions(true, false);
+
+    private final boolean parallel;
+    private final boolean sorted;
+
+    private FindOptions(boolean parallel, boolean sorted) {
+        this.parallel = parallel;
+        this.sorted = sorted;
+    }
+
+    public static FindOptions sequential() {
+        return SEQUENTIAL;
+    }
+
+    /**
+     * Directories of DIRECTORY storage are walked in parallel (fork join pool). ZIP storage is always walked sequentially.
+     */
+    public static FindOptions parallel() {
+        return PARALLEL;
+    }
+
+    /**
+     * Found resources are sorted by path
+     */
+    public FindOptions sorted() {
+        return new FindOptions(parallel, true);
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    public boolean isSorted() {
+        return sorted;
+    }
+
+    @Override
+    public String toString() {
+        return "FindOptions [parallel: " + parallel + ", sorted: " + sorted + "]";
+    }
+}
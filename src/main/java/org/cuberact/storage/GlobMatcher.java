@@ -8,14 +8,113 @@ import java.util.regex.PatternSyntaxException;
  */
 final class GlobMatcher {
 
+    private static final int REGEX = 0;
+    private static final int LITERAL = 1;
+    private static final int NAME_SUFFIX = 2; // *suffix
+    private static final int PATH_SUFFIX = 3; // **suffix
+    private static final int PATH_PREFIX = 4; // prefix**
+
     private final String glob;
     private final Pattern pattern;
+    private final int kind;
+    private final String literal;
+    private final Pattern[] segments;
 
     private static final String regexMetaChars = ".^$+{[]|()";
     private static final String globMetaChars = "\\*?[{";
 
     GlobMatcher(String glob) {
         this.glob = glob;
+        this.pattern = compile(glob);
+        if (!hasGlobMeta(glob, 0, glob.length())) {
+            kind = LITERAL;
+            literal = glob;
+        } else if (glob.startsWith("**") && !hasGlobMeta(glob, 2, glob.length())) {
+            kind = PATH_SUFFIX;
+            literal = glob.substring(2);
+        } else if (glob.startsWith("*") && glob.indexOf('/') == -1 && !hasGlobMeta(glob, 1, glob.length())) {
+            kind = NAME_SUFFIX;
+            literal = glob.substring(1);
+        } else if (glob.endsWith("**") && !hasGlobMeta(glob, 0, glob.length() - 2)) {
+            kind = PATH_PREFIX;
+            literal = glob.substring(0, glob.length() - 2);
+        } else {
+            kind = REGEX;
+            literal = null;
+        }
+        this.segments = splitSegments(glob);
+    }
+
+    /**
+     * @param directory relative path of directory (without trailing slash)
+     * @return false if no path inside directory can be matched by this glob
+     */
+    boolean mayMatchInside(String directory) {
+        if (segments == null) {
+            return true;
+        }
+        int segment = 0;
+        int start = 0;
+        while (start <= directory.length()) {
+            if (segments[segment] == null) {
+                return true; // '**' crosses directory boundaries
+            }
+            if (segment == segments.length - 1) {
+                return false; // directory is deeper than glob
+            }
+            int end = directory.indexOf('/', start);
+            if (end == -1) {
+                end = directory.length();
+            }
+            if (!segments[segment].matcher(directory.substring(start, end)).matches()) {
+                return false;
+            }
+            segment++;
+            start = end + 1;
+        }
+        return true;
+    }
+
+    private static Pattern compile(String glob) {
+        return Pattern.compile(toRegex(glob), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+
+    /**
+     * @return pattern per glob segment (null for segment with '**') or null if glob can't be split by '/'
+     */
+    private static Pattern[] splitSegments(String glob) {
+        if (glob.indexOf('\\') != -1) {
+            return null;
+        }
+        boolean inGroup = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '{') {
+                inGroup = true;
+            } else if (c == '}') {
+                inGroup = false;
+            } else if (c == '/' && inGroup) {
+                return null;
+            }
+        }
+        String[] parts = glob.split("/", -1);
+        Pattern[] segments = new Pattern[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            segments[i] = parts[i].contains("**") ? null : compile(parts[i]);
+        }
+        return segments;
+    }
+
+    private static boolean hasGlobMeta(String glob, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (isGlobMeta(glob.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toRegex(String glob) {
         boolean inGroup = false;
         StringBuilder regex = new StringBuilder("^");
         int i = 0;
@@ -145,11 +244,26 @@ final class GlobMatcher {
             throw new PatternSyntaxException("Missing '}", glob, i - 1);
         }
         regex.append('$');
-        this.pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        return regex.toString();
     }
 
     boolean matches(String path) {
-        return pattern.matcher(path).matches();
+        switch (kind) {
+            case LITERAL:
+                return path.equalsIgnoreCase(literal);
+            case NAME_SUFFIX:
+                return path.indexOf('/') == -1 && endsWithIgnoreCase(path, literal);
+            case PATH_SUFFIX:
+                return endsWithIgnoreCase(path, literal);
+            case PATH_PREFIX:
+                return path.regionMatches(true, 0, literal, 0, literal.length());
+            default:
+                return pattern.matcher(path).matches();
+        }
+    }
+
+    private static boolean endsWithIgnoreCase(String path, String suffix) {
+        return path.regionMatches(true, path.length() - suffix.length(), suffix, 0, suffix.length());
     }
 
     @Override
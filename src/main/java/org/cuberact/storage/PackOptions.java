@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.util.zip.Deflater;
+
+/**
+ * Options of {@link Storage#packTo(Storage, String, PackOptions)}
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public final class PackOptions {
+
+    private static final PackOptions DEFAULTS = new PackOptions(Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors(), false);
+
+    private final int level;
+    private final int concurrency;
+    private final boolean verifyContent;
+
+    private PackOptions(int level, int concurrency, boolean verifyContent) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Compression level must be -1 or 0..9, was " + level);
+        }
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive, was " + concurrency);
+        }
+        this.level = level;
+        this.concurrency = concurrency;
+        this.verifyContent = verifyContent;
+    }
+
+    /**
+     * Default compression level, compression on all available processors, unchanged entries are recognized by size
+     * and modification time. Modification time is compared as DOS time of ZIP entry, which has 2 second precision
+     * and local timezone. Change of file within the same 2 seconds without change of size is missed (entry is reused),
+     * archive packed in other timezone is compressed again. Use {@link #verifyContent()} if it matters.
+     */
+    public static PackOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Deflate level 0..9 ({@link Deflater#DEFAULT_COMPRESSION} for default)
+     */
+    public PackOptions level(int level) {
+        return new PackOptions(level, concurrency, verifyContent);
+    }
+
+    /**
+     * Resources are read and compressed on at most concurrency threads
+     */
+    public PackOptions concurrency(int concurrency) {
+        return new PackOptions(level, concurrency, verifyContent);
+    }
+
+    /**
+     * Entry of previous archive with the same size and modification time is reused only if CRC of resource content
+     * matches too (every resource is read).
+     */
+    public PackOptions verifyContent() {
+        return new PackOptions(level, concurrency, true);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public boolean isVerifyContent() {
+        return verifyContent;
+    }
+
+    @Override
+    public String toString() {
+        return "PackOptions [level: " + level + ", concurrency: " + concurrency + ", verifyContent: " + verifyContent + "]";
+    }
+}
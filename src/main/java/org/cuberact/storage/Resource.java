@@ -16,7 +16,10 @@
 
 package org.cuberact.storage;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -25,12 +28,27 @@ import java.io.Reader;
 import java.net.URI;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.function.Predicate;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Supplier;
 import org.cuberact.storage.deferred.DeferredExecutor;
 import org.cuberact.storage.deferred.DeferredTask;
@@ -41,6 +59,7 @@ import org.cuberact.storage.deferred.DeferredTask;
 public class Resource {
 
     private static final String ps = isWindows() ? "/" : "//";
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
 
     private final Storage storage;
     private final String path;
@@ -48,9 +67,6 @@ public class Resource {
     private String fullName;
     private String name;
     private String extension;
-    private final Predicate<DeferredTask> matcher = task ->
-            task instanceof WriteTask &&
-                    ((WriteTask) task).resource.equals(Resource.this);
 
     Resource(Storage storage, String path) {
         this.storage = storage;
@@ -109,27 +125,111 @@ public class Resource {
 
     public boolean exists() {
         ifWriteWaitingThenRunImmediately();
-        return storage.exists() && storage.runInStorage(fs -> Files.exists(fs.getPath(path)));
+        if (!storage.exists()) {
+            return false;
+        }
+        ZipEntryTable table = storage.getEntryTable();
+        if (table != null) {
+            return table.exists(path);
+        }
+        StorageIndex index = storage.getIndex(path);
+        if (index != null) {
+            return index.exists(path);
+        }
+        return storage.runInStorage(fs -> Files.exists(fs.getPath(path)));
     }
 
     public long size() {
         ifWriteWaitingThenRunImmediately();
+        ZipEntryTable table = storage.getEntryTable();
+        if (table != null) {
+            return table.isDirectory(path) ? 0 : getEntry(table).size;
+        }
+        StorageIndex index = storage.exists() ? storage.getIndex(path) : null;
+        StorageIndex.Entry entry = index != null ? index.get(path) : null;
+        if (entry != null) {
+            return entry.size;
+        }
         return storage.runInStorage(fs -> Files.size(fs.getPath(path)));
     }
 
+    /**
+     * Size of written content (waiting deferred writes are not run), 0 if resource doesn't exist
+     */
+    long writtenSize() {
+        if (!Files.exists(storage.getPath())) {
+            return 0;
+        }
+        return storage.runInStorage(fs -> {
+            Path resourcePath = fs.getPath(path);
+            return Files.exists(resourcePath) ? Files.size(resourcePath) : 0L;
+        });
+    }
+
+    /**
+     * Reads all metadata of resource in one storage operation
+     */
+    public ResourceAttributes attributes() {
+        ifWriteWaitingThenRunImmediately();
+        if (!storage.exists()) {
+            return ResourceAttributes.NOT_EXISTS;
+        }
+        ZipEntryTable table = storage.getEntryTable();
+        if (table != null) {
+            ZipCentralDirectory.Entry entry = table.getEntry(path);
+            return entry != null ? ResourceAttributes.of(entry) : table.exists(path) ? ResourceAttributes.directory() : ResourceAttributes.NOT_EXISTS;
+        }
+        return storage.runInStorage(fs -> ResourceAttributes.read(fs.getPath(path)));
+    }
+
     public void delete() {
         ifWriteWaitingThenRunImmediately();
-        storage.runInStorage(fs -> {
-            Storage.delete(fs.getPath(path));
+        storage.writeResource(path, fs -> {
+            Path deletePath = fs.getPath(path);
+            Storage.delete(deletePath);
+            storage.updateIndex(path, deletePath);
             return null;
         });
     }
 
     public byte[] readToBytes() {
+        byte[] content = readContent();
+        return storage.getCache() != null ? content.clone() : content;
+    }
+
+    /**
+     * @return content which must not be modified (it can be shared by cache of storage)
+     */
+    private byte[] readContent() {
         ifWriteWaitingThenRunImmediately();
+        ResourceCache cache = storage.getCache();
+        if (cache != null) {
+            byte[] cached = cache.get(path);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        ZipEntryTable table = storage.getEntryTable();
+        if (table != null) {
+            try {
+                byte[] content = table.read(getEntry(table));
+                if (cache != null) {
+                    cache.put(path, content, null);
+                }
+                return content;
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
         return storage.runInStorage(fs -> {
             try {
-                return Files.readAllBytes(fs.getPath(path));
+                Path readPath = fs.getPath(path);
+                BasicFileAttributes stamp = cache != null && storage.getType() == StorageType.DIRECTORY ? ResourceCache.stamp(readPath) : null;
+                byte[] content = Files.readAllBytes(readPath);
+                if (cache != null) {
+                    cache.put(path, content, stamp);
+                }
+                return content;
             } catch (IOException e) {
                 throw new StorageException(e);
             }
@@ -137,6 +237,19 @@ public class Resource {
     }
 
     public ByteBuffer readToByteBuffer() {
+        if (storage.getType() == StorageType.DIRECTORY) {
+            ifWriteWaitingThenRunImmediately();
+            try (FileChannel channel = FileChannel.open(storage.getPath().resolve(path), StandardOpenOption.READ)) {
+                ByteBuffer byteBuffer = ByteBuffer.allocateDirect(Math.toIntExact(channel.size())).order(ByteOrder.nativeOrder());
+                while (byteBuffer.hasRemaining() && channel.read(byteBuffer) != -1) {
+                    //read directly to direct buffer
+                }
+                byteBuffer.flip();
+                return byteBuffer;
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
         byte[] content = readToBytes();
         ByteBuffer byteBuffer = ByteBuffer.allocateDirect(content.length).order(ByteOrder.nativeOrder());
         byteBuffer.put(content);
@@ -144,12 +257,57 @@ public class Resource {
         return byteBuffer;
     }
 
+    /**
+     * Maps resource content into memory without copying. Returned buffer is read only.
+     * <p>
+     * DIRECTORY storage maps the file. ZIP storage maps STORED (uncompressed) entries directly from the archive,
+     * compressed entries are inflated into direct buffer.
+     */
+    public ByteBuffer mapReadOnly() {
+        ifWriteWaitingThenRunImmediately();
+        if (storage.getType() == StorageType.DIRECTORY) {
+            try (FileChannel channel = FileChannel.open(storage.getPath().resolve(path), StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+        ZipEntryTable table = storage.getEntryTable();
+        if (table != null) {
+            try {
+                return table.map(getEntry(table));
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+        if (storage.exists() && ZipFileSystemPool.flush(storage.getPath())) {
+            try (FileChannel channel = FileChannel.open(storage.getPath(), StandardOpenOption.READ)) {
+                ZipCentralDirectory.Entry entry = storage.getCentralDirectory(channel).getEntry(path);
+                if (entry != null && entry.method == ZipCentralDirectory.METHOD_STORED && !entry.isEncrypted()) {
+                    long dataOffset = ZipCentralDirectory.dataOffset(channel, entry);
+                    return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset, entry.size).order(ByteOrder.nativeOrder());
+                }
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+        return readToByteBuffer().asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    }
+
     public String readToString() {
-        return new String(readToBytes(), getStorage().getCharset());
+        return new String(readContent(), getStorage().getCharset());
     }
 
     public <E> E readFromInputStream(InputStreamProcessor<E> processor) {
         ifWriteWaitingThenRunImmediately();
+        ZipEntryTable table = storage.getEntryTable();
+        if (table != null) {
+            try (InputStream inputStream = table.openInputStream(getEntry(table))) {
+                return processor.read(inputStream);
+            } catch (Throwable e) {
+                throw new StorageException(e);
+            }
+        }
         return storage.runInStorage(fs -> {
             try (InputStream inputStream = Files.newInputStream(fs.getPath(path))) {
                 return processor.read(inputStream);
@@ -165,25 +323,26 @@ public class Resource {
 
     public void write(Reader content, boolean append) {
         ifWriteWaitingThenRunImmediately();
-        storage.runInStorage(fs -> {
+        storage.writeResource(path, fs -> {
             Path writePath = fs.getPath(path);
             try {
                 Files.createDirectories(writePath.getParent());
             } catch (IOException e) {
                 throw new StorageException(e);
             }
-            try (BufferedWriter bufferedWriter = Files.newBufferedWriter(writePath, getStorage().getCharset(), getOpenOption(append))) {
+            try (BufferedWriter bufferedWriter = Files.newBufferedWriter(writePath, getStorage().getCharset(), getOpenOption(writePath, append))) {
                 char[] buffer = new char[4096];
                 int n;
                 while ((n = content.read(buffer)) != -1) {
                     bufferedWriter.write(buffer, 0, n);
                 }
-                return null;
             } catch (IOException e) {
                 throw new StorageException(e);
             } finally {
                 Storage.closeQuietly(content);
             }
+            storage.updateIndex(path, writePath);
+            return null;
         });
     }
 
@@ -192,59 +351,390 @@ public class Resource {
         writeInternal(content, append);
     }
 
+    public void write(CharSequence content, boolean append, WriteOptions options) {
+        write(content.toString().getBytes(getStorage().getCharset()), append, options);
+    }
+
+    /**
+     * Writes content with given durability, optionally atomically (see {@link WriteOptions})
+     */
+    public void write(byte[] content, boolean append, WriteOptions options) {
+        ifWriteWaitingThenRunImmediately();
+        writeInternal(ByteBuffer.wrap(content), append, options);
+    }
+
     public void write(InputStream content, boolean append) {
         write(new InputStreamReader(content, getStorage().getCharset()), append);
     }
 
     public void writeBinary(InputStream inputStream) {
         ifWriteWaitingThenRunImmediately();
-        storage.runInStorage(fs -> {
+        storage.writeResource(path, fs -> {
             Path writePath = fs.getPath(path);
             try {
                 Files.createDirectories(writePath.getParent());
             } catch (IOException e) {
                 throw new StorageException(e);
             }
-            try (OutputStream outputStream = Files.newOutputStream(writePath, getOpenOption(false))) {
+            try (OutputStream outputStream = Files.newOutputStream(writePath, getOpenOption(writePath, false))) {
                 byte[] buffer = new byte[4096];
                 int n;
                 while ((n = inputStream.read(buffer)) != -1) {
                     outputStream.write(buffer, 0, n);
                 }
-                return null;
             } catch (IOException e) {
                 throw new StorageException(e);
             } finally {
                 Storage.closeQuietly(inputStream);
             }
+            storage.updateIndex(path, writePath);
+            return null;
         });
     }
 
+    /**
+     * Writes all bytes from channel. For DIRECTORY storage the content is transferred by
+     * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)} without copying through java heap.
+     */
+    public void write(ReadableByteChannel content, boolean append) {
+        ifWriteWaitingThenRunImmediately();
+        if (storage.getType() == StorageType.DIRECTORY) {
+            storage.writeResource(path, fs -> {
+                Path writePath = createParentDirectories(fs.getPath(path));
+                try (FileChannel channel = FileChannel.open(writePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        append ? StandardOpenOption.READ : StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long position = append ? channel.size() : 0;
+                    long transferred;
+                    while ((transferred = channel.transferFrom(content, position, TRANSFER_CHUNK_SIZE)) > 0) {
+                        position += transferred;
+                    }
+                } finally {
+                    Storage.closeQuietly(content);
+                }
+                storage.updateIndex(path, writePath);
+                return null;
+            });
+        } else {
+            try (SeekableByteChannel channel = openWritableChannel(append)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                while (content.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                throw new StorageException(e);
+            } finally {
+                Storage.closeQuietly(content);
+            }
+        }
+    }
+
+    public OutputStream openOutputStream(boolean append) {
+        return openOutputStream(append, 8192);
+    }
+
+    /**
+     * Opens stream writing directly to resource, stream must be closed (ZIP storage stays mounted until then).
+     * Other writes of the resource wait until the stream is closed. Content is written in place (never atomically),
+     * it's synced by durability of storage {@link WriteOptions} when the stream is closed.
+     *
+     * @param bufferSize size of write buffer, data are flushed to storage when buffer is full; 0 means no buffer
+     */
+    public OutputStream openOutputStream(boolean append, int bufferSize) {
+        ifWriteWaitingThenRunImmediately();
+        ResourceLocks.Lock lock = ResourceLocks.get(storage.getPath().resolve(path));
+        lock.lock();
+        StorageLease lease = null;
+        try {
+            lease = storage.openLease(true);
+            Path writePath = createParentDirectories(lease.getFileSystem().getPath(path));
+            OutputStream outputStream = new LeasedOutputStream(Files.newOutputStream(writePath, getWriteOpenOptions(append)), this, writePath, lease, lock);
+            return bufferSize > 0 ? new BufferedOutputStream(outputStream, bufferSize) : outputStream;
+        } catch (Throwable t) {
+            releaseWrite(lease, lock);
+            throw t instanceof StorageException ? (StorageException) t : new StorageException(t);
+        }
+    }
+
+    /**
+     * Opens channel writing directly to resource, channel must be closed (ZIP storage stays mounted until then).
+     * Other writes of the resource wait until the channel is closed. Content is written in place (never atomically),
+     * it's synced by durability of storage {@link WriteOptions} when the channel is closed.
+     */
+    public SeekableByteChannel openWritableChannel(boolean append) {
+        ifWriteWaitingThenRunImmediately();
+        ResourceLocks.Lock lock = ResourceLocks.get(storage.getPath().resolve(path));
+        lock.lock();
+        StorageLease lease = null;
+        try {
+            lease = storage.openLease(true);
+            Path writePath = createParentDirectories(lease.getFileSystem().getPath(path));
+            return new LeasedByteChannel(Files.newByteChannel(writePath, getWriteOpenOptions(append)), this, writePath, lease, lock);
+        } catch (Throwable t) {
+            releaseWrite(lease, lock);
+            throw t instanceof StorageException ? (StorageException) t : new StorageException(t);
+        }
+    }
+
+    /**
+     * Closes stream or channel opened for write, releases storage and resource lock and syncs written content
+     * by durability of storage {@link WriteOptions} (ZIP archive is synced after it's released)
+     */
+    private void closeWrite(Closeable closeable, Path writePath, StorageLease lease, ResourceLocks.Lock lock) throws IOException {
+        try {
+            closeable.close();
+            storage.updateIndex(path, writePath);
+        } finally {
+            releaseWrite(lease, lock);
+        }
+        Durability durability = storage.getWriteOptions().getDurability();
+        if (storage.getType() == StorageType.DIRECTORY) {
+            ResourceWriter.sync(storage.getPath().resolve(path), durability);
+        } else {
+            storage.sync(durability);
+        }
+    }
+
+    private static void releaseWrite(StorageLease lease, ResourceLocks.Lock lock) {
+        try {
+            if (lease != null) {
+                lease.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies content into target resource (target is overwritten). DIRECTORY to DIRECTORY copy uses
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, ZIP to ZIP copy moves compressed data without
+     * inflating and deflating. Copied content is synced by {@link WriteOptions} of target storage.
+     */
+    public void copyTo(Resource target) {
+        copyToInternal(target);
+        target.storage.sync(target.storage.getWriteOptions().getDurability());
+    }
+
+    /**
+     * Copies without writing changes of target ZIP archive to disk (caller syncs target storage)
+     */
+    void copyToInternal(Resource target) {
+        ifWriteWaitingThenRunImmediately();
+        target.ifWriteWaitingThenRunImmediately();
+        if (storage.equals(target.storage)) {
+            storage.writeResource(target.path, fs -> {
+                Path targetPath = createParentDirectories(fs.getPath(target.path));
+                Files.copy(fs.getPath(path), targetPath, StandardCopyOption.REPLACE_EXISTING);
+                storage.updateIndex(target.path, targetPath);
+                return null;
+            });
+        } else if (storage.getType() == StorageType.DIRECTORY && target.storage.getType() == StorageType.DIRECTORY) {
+            target.storage.writeResource(target.path, fs -> {
+                Path targetPath = createParentDirectories(fs.getPath(target.path));
+                try (FileChannel source = FileChannel.open(storage.getPath().resolve(path), StandardOpenOption.READ);
+                     FileChannel channel = FileChannel.open(targetPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long size = source.size();
+                    long position = 0;
+                    while (position < size) {
+                        long transferred = source.transferTo(position, size - position, channel);
+                        if (transferred <= 0) {
+                            break; //source was truncated meanwhile, its current content is copied
+                        }
+                        position += transferred;
+                    }
+                }
+                target.storage.updateIndex(target.path, targetPath);
+                return null;
+            });
+        } else if (storage.getType() == StorageType.ZIP && target.storage.getType() == StorageType.ZIP
+                && Storage.copyRaw(storage, target.storage, Collections.singletonMap(path, target.path))) {
+            return;
+        } else {
+            readFromInputStream(inputStream -> {
+                target.writeBinary(inputStream);
+                return null;
+            });
+        }
+        if (target.storage.getType() == StorageType.DIRECTORY) {
+            try {
+                ResourceWriter.sync(target.storage.getPath().resolve(target.path), target.storage.getWriteOptions().getDurability());
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads content without blocking caller thread. File of DIRECTORY storage is read by {@link AsynchronousFileChannel},
+     * otherwise (or if deferred write of resource is waiting) the read runs on async executor of storage.
+     */
+    public CompletableFuture<byte[]> readAsync() {
+        if (storage.getType() != StorageType.DIRECTORY || storage.getDeferredExecutor().isWaiting(this)) {
+            return CompletableFuture.supplyAsync(this::readToBytes, storage.getAsyncExecutor());
+        }
+        AsynchronousFileChannel channel = null;
+        try {
+            channel = AsynchronousFileChannel.open(storage.getPath().resolve(path), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new StorageException("Resource '" + path + "' is too big for byte array (" + size + " bytes)");
+            }
+            return new AsyncTransfer(channel, ByteBuffer.allocate((int) size), 0, false).start()
+                    .thenApply(buffer -> buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array());
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                Storage.closeQuietly(channel);
+            }
+            return failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Void> writeAsync(CharSequence content, boolean append) {
+        return writeAsync(content.toString().getBytes(getStorage().getCharset()), append);
+    }
+
+    /**
+     * Writes content without blocking caller thread. File of DIRECTORY storage is written by {@link AsynchronousFileChannel},
+     * otherwise (or if write options of storage require sync or atomic write, or if deferred write or other write
+     * of resource is running) the write runs on async executor of storage.
+     */
+    public CompletableFuture<Void> writeAsync(byte[] content, boolean append) {
+        WriteOptions options = storage.getWriteOptions();
+        if (storage.getType() != StorageType.DIRECTORY || options.isAtomic() || options.getDurability().compareTo(Durability.FSYNC_FILE) >= 0
+                || storage.getDeferredExecutor().isWaiting(this)) {
+            return CompletableFuture.runAsync(() -> write(content, append), storage.getAsyncExecutor());
+        }
+        Path writePath = storage.getPath().resolve(path);
+        ResourceLocks.Lock lock = ResourceLocks.get(writePath);
+        if (!lock.tryLockAsync()) {
+            return CompletableFuture.runAsync(() -> write(content, append), storage.getAsyncExecutor());
+        }
+        AsynchronousFileChannel channel = null;
+        try {
+            createParentDirectories(writePath);
+            channel = AsynchronousFileChannel.open(writePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    append ? StandardOpenOption.READ : StandardOpenOption.TRUNCATE_EXISTING);
+            return new AsyncTransfer(channel, ByteBuffer.wrap(content), append ? channel.size() : 0, true).start()
+                    .thenRun(() -> {
+                        try {
+                            storage.updateIndex(path, writePath);
+                        } catch (IOException e) {
+                            throw new StorageException(e);
+                        }
+                    })
+                    .whenComplete((result, t) -> lock.unlock());
+        } catch (IOException | RuntimeException e) {
+            lock.unlock();
+            if (channel != null) {
+                Storage.closeQuietly(channel);
+            }
+            return failedFuture(e);
+        }
+    }
+
+    public CompletableFuture<Long> sizeAsync() {
+        return CompletableFuture.supplyAsync(this::size, storage.getAsyncExecutor());
+    }
+
     public void ifWriteWaitingThenRunImmediately() {
-        DeferredExecutor.runImmediately(matcher);
+        storage.getDeferredExecutor().runImmediately(this);
     }
 
     public void writeDeferred(CharSequence content) {
-        writeDeferred(content.toString().getBytes(getStorage().getCharset()));
+        writeDeferred(content, storage.getDeferPolicy());
     }
 
     public void writeDeferred(final byte[] content) {
-        writeDeferred(new BytesSupplier(content));
+        writeDeferred(content, storage.getDeferPolicy());
     }
 
     public void writeDeferred(final Supplier<byte[]> contentProvider) {
-        DeferredExecutor.runDeferred(new WriteTask(this, contentProvider));
+        writeDeferred(contentProvider, storage.getDeferPolicy());
+    }
+
+    public void writeDeferred(CharSequence content, DeferPolicy policy) {
+        writeDeferred(content.toString().getBytes(getStorage().getCharset()), policy);
+    }
+
+    public void writeDeferred(final byte[] content, DeferPolicy policy) {
+        storage.checkWritable();
+        WriteTask task = new WriteTask(this, new BytesSupplier(content), policy, content.length);
+        task.logAndSchedule(content, false);
+    }
+
+    /**
+     * Content is provided when the write runs, so max size of policy is not applied. If storage is journaled,
+     * content is provided immediately (it must be logged).
+     */
+    public void writeDeferred(final Supplier<byte[]> contentProvider, DeferPolicy policy) {
+        storage.checkWritable();
+        if (storage.isJournaled()) {
+            writeDeferred(contentProvider.get(), policy);
+            return;
+        }
+        storage.getDeferredExecutor().schedule(new WriteTask(this, contentProvider, policy, -1));
+    }
+
+    public void appendDeferred(CharSequence content) {
+        appendDeferred(content, storage.getDeferPolicy());
+    }
+
+    public void appendDeferred(final byte[] content) {
+        appendDeferred(content, storage.getDeferPolicy());
+    }
+
+    public void appendDeferred(CharSequence content, DeferPolicy policy) {
+        appendDeferred(content.toString().getBytes(getStorage().getCharset()), policy);
+    }
+
+    /**
+     * Content is appended to waiting appends (in off heap buffer) and all of them are written by one append.
+     * Max size of policy applies to all waiting appends. Deferred write of resource replaces waiting appends,
+     * append after waiting deferred write is written together with it.
+     */
+    public void appendDeferred(final byte[] content, DeferPolicy policy) {
+        storage.checkWritable();
+        AppendTask task = new AppendTask(this, content.clone(), policy);
+        task.logAndSchedule(content, true);
+    }
+
+    /**
+     * @return entry of file in read only ZIP storage
+     * @throws StorageException if file doesn't exist
+     */
+    private ZipCentralDirectory.Entry getEntry(ZipEntryTable table) {
+        ZipCentralDirectory.Entry entry = table.getEntry(path);
+        if (entry == null) {
+            throw new StorageException(new NoSuchFileException(path));
+        }
+        return entry;
+    }
+
+    void writeInternal(ByteBuffer content, boolean append) {
+        writeInternal(content, append, storage.getWriteOptions());
     }
 
     void writeInternal(byte[] content, boolean append) {
-        storage.runInStorage(fs -> {
+        writeInternal(ByteBuffer.wrap(content), append, storage.getWriteOptions());
+    }
+
+    void writeInternal(ByteBuffer content, boolean append, WriteOptions options) {
+        writeUnsynced(content, append, options);
+        storage.sync(options.getDurability());
+    }
+
+    /**
+     * Writes content, changes of ZIP archive are not written to disk (files of DIRECTORY storage are synced by options)
+     */
+    void writeUnsynced(ByteBuffer content, boolean append, WriteOptions options) {
+        storage.writeResource(path, fs -> {
             try {
                 Path writePath = fs.getPath(path);
-                Path parentPath = writePath.getParent();
-                if (parentPath != null) {
-                    Files.createDirectories(parentPath);
-                }
-                Files.write(writePath, content, getOpenOption(append));
+                ResourceWriter.write(writePath, content, append, options);
+                storage.updateIndex(path, writePath);
                 return null;
             } catch (IOException e) {
                 throw new StorageException(e);
@@ -274,13 +764,125 @@ public class Resource {
                 + "]";
     }
 
-    private OpenOption getOpenOption(boolean append) {
-        if (exists()) {
+    private static <E> CompletableFuture<E> failedFuture(Throwable t) {
+        CompletableFuture<E> future = new CompletableFuture<>();
+        future.completeExceptionally(t instanceof StorageException ? t : new StorageException(t));
+        return future;
+    }
+
+    private static Path createParentDirectories(Path writePath) throws IOException {
+        Path parentPath = writePath.getParent();
+        if (parentPath != null) {
+            Files.createDirectories(parentPath);
+        }
+        return writePath;
+    }
+
+    private static OpenOption[] getWriteOpenOptions(boolean append) {
+        return new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING};
+    }
+
+    private static OpenOption getOpenOption(Path writePath, boolean append) throws IOException {
+        if (ResourceAttributes.read(writePath).exists()) {
             return append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
         }
         return StandardOpenOption.CREATE;
     }
 
+    private static final class LeasedOutputStream extends FilterOutputStream {
+
+        private final Resource resource;
+        private final Path writePath;
+        private final StorageLease lease;
+        private final ResourceLocks.Lock lock;
+        private boolean closed;
+
+        private LeasedOutputStream(OutputStream out, Resource resource, Path writePath, StorageLease lease, ResourceLocks.Lock lock) {
+            super(out);
+            this.resource = resource;
+            this.writePath = writePath;
+            this.lease = lease;
+            this.lock = lock;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            resource.closeWrite(out, writePath, lease, lock);
+        }
+    }
+
+    private static final class LeasedByteChannel implements SeekableByteChannel {
+
+        private final SeekableByteChannel channel;
+        private final Resource resource;
+        private final Path writePath;
+        private final StorageLease lease;
+        private final ResourceLocks.Lock lock;
+
+        private LeasedByteChannel(SeekableByteChannel channel, Resource resource, Path writePath, StorageLease lease, ResourceLocks.Lock lock) {
+            this.channel = channel;
+            this.resource = resource;
+            this.writePath = writePath;
+            this.lease = lease;
+            this.lock = lock;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            resource.closeWrite(channel, writePath, lease, lock);
+        }
+    }
+
     private static class BytesSupplier implements Supplier<byte[]> {
 
         private final byte[] bytes;
@@ -295,20 +897,223 @@ public class Resource {
         }
     }
 
-    static class WriteTask extends DeferredTask {
+    /**
+     * Reads or writes whole buffer by asynchronous file channel, the channel is closed when done
+     */
+    private static final class AsyncTransfer implements CompletionHandler<Integer, Void> {
+
+        private final AsynchronousFileChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean write;
+        private final CompletableFuture<ByteBuffer> done = new CompletableFuture<>();
+        private long position;
+
+        private AsyncTransfer(AsynchronousFileChannel channel, ByteBuffer buffer, long position, boolean write) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.position = position;
+            this.write = write;
+        }
+
+        private CompletableFuture<ByteBuffer> start() {
+            if (buffer.hasRemaining()) {
+                next();
+            } else {
+                finish();
+            }
+            return done;
+        }
+
+        private void next() {
+            try {
+                if (write) {
+                    channel.write(buffer, position, null, this);
+                } else {
+                    channel.read(buffer, position, null, this);
+                }
+            } catch (RuntimeException e) {
+                failed(e, null);
+            }
+        }
+
+        @Override
+        public void completed(Integer count, Void attachment) {
+            if (count > 0) {
+                position += count;
+            }
+            if (count < 0 || !buffer.hasRemaining()) {
+                finish();
+            } else {
+                next();
+            }
+        }
+
+        @Override
+        public void failed(Throwable t, Void attachment) {
+            Storage.closeQuietly(channel);
+            done.completeExceptionally(new StorageException(t));
+        }
+
+        private void finish() {
+            try {
+                channel.close();
+                done.complete(buffer);
+            } catch (IOException e) {
+                done.completeExceptionally(new StorageException(e));
+            }
+        }
+    }
+
+    /**
+     * Deferred task of resource, its content is logged in journal of storage (if storage is journaled)
+     * until the task is done
+     */
+    abstract static class ResourceTask extends DeferredTask {
+
+        private static final long[] NO_SEQUENCES = new long[0];
 
         final Resource resource;
-        final Supplier<byte[]> contentProvider;
+        private StorageJournal journal;
+        private long[] journalSequences = NO_SEQUENCES;
 
-        WriteTask(Resource resource, Supplier<byte[]> contentProvider) {
-            super(DEFERRED_DELAY_IN_MILLISECONDS);
+        ResourceTask(Resource resource, long delayInMilliSeconds, long maxWaitInMilliSeconds) {
+            super(delayInMilliSeconds, maxWaitInMilliSeconds);
             this.resource = resource;
+        }
+
+        /**
+         * Content is logged and the task is scheduled under journal lock, so the journal sees whether other task
+         * of resource is waiting (offset of append continues from its content, otherwise from written size)
+         */
+        final void logAndSchedule(byte[] content, boolean append) {
+            DeferredExecutor executor = resource.storage.getDeferredExecutor();
+            journal = resource.storage.getJournal();
+            if (journal == null) {
+                executor.schedule(this);
+                return;
+            }
+            synchronized (journal) {
+                journalSequences = new long[]{journal.log(resource.path, content, append, executor.isWaiting(resource), resource::writtenSize)};
+                executor.schedule(this);
+            }
+        }
+
+        /**
+         * Replaced task will never run, its journal records are committed with this task
+         */
+        @Override
+        protected void absorb(DeferredTask replaced) {
+            if (replaced instanceof ResourceTask) {
+                ResourceTask previous = (ResourceTask) replaced;
+                if (previous.journalSequences.length > 0) {
+                    long[] sequences = Arrays.copyOf(previous.journalSequences, previous.journalSequences.length + journalSequences.length);
+                    System.arraycopy(journalSequences, 0, sequences, previous.journalSequences.length, journalSequences.length);
+                    journalSequences = sequences;
+                    if (journal == null) {
+                        journal = previous.journal;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Written content is synced by write options of storage and journal records are committed when it's on disk,
+         * deferred task doesn't wait for other users of ZIP archive (see {@link Storage#syncDeferred(Durability, Runnable)})
+         */
+        final void commit() {
+            commit(resource.storage, Collections.singletonList(this));
+        }
+
+        static void commit(Storage storage, List<? extends DeferredTask> tasks) {
+            List<Runnable> commits = new ArrayList<>();
+            for (DeferredTask task : tasks) {
+                ResourceTask resourceTask = (ResourceTask) task;
+                if (resourceTask.journal != null) {
+                    StorageJournal journal = resourceTask.journal;
+                    long[] sequences = resourceTask.journalSequences;
+                    commits.add(() -> journal.commit(sequences));
+                }
+            }
+            storage.syncDeferred(storage.getWriteOptions().getDurability(), commits.isEmpty() ? null : () -> commits.forEach(Runnable::run));
+        }
+
+        @Override
+        public Object getKey() {
+            return resource;
+        }
+
+        @Override
+        public Object getGroup() {
+            return resource.getStorage();
+        }
+
+        @Override
+        public String toString() {
+            return resource.getUri().toString();
+        }
+    }
+
+    static class WriteTask extends ResourceTask {
+
+        final Supplier<byte[]> contentProvider;
+
+        WriteTask(Resource resource, Supplier<byte[]> contentProvider, DeferPolicy policy, long size) {
+            super(resource, policy.getDelayInMilliseconds(size), policy.getMaxWaitInMilliseconds());
             this.contentProvider = contentProvider;
         }
 
         @Override
         public void run() {
-            resource.writeInternal(contentProvider.get(), false);
+            resource.writeUnsynced(ByteBuffer.wrap(contentProvider.get()), false, resource.storage.getWriteOptions());
+            commit();
+        }
+
+        /**
+         * All due writes of one storage are written in one mount (one archive rewrite for ZIP storage). Task whose
+         * content can't be provided fails alone, if the batch fails, the writes are done one by one. Failures are
+         * thrown after all other writes are done.
+         */
+        @Override
+        protected void runTogether(List<? extends DeferredTask> tasks) {
+            Storage storage = resource.getStorage();
+            StorageBatch batch = new StorageBatch(storage);
+            Map<WriteTask, byte[]> contents = new LinkedHashMap<>();
+            RuntimeException failure = null;
+            for (DeferredTask task : tasks) {
+                WriteTask writeTask = (WriteTask) task;
+                try {
+                    byte[] content = writeTask.contentProvider.get();
+                    batch.write(writeTask.resource.getPath(), content, false);
+                    contents.put(writeTask, content);
+                } catch (RuntimeException e) {
+                    failure = addFailure(failure, e);
+                }
+            }
+            if (!contents.isEmpty()) {
+                boolean applied = false;
+                try {
+                    storage.writeInStorage(fs -> {
+                        batch.apply(fs);
+                        return null;
+                    });
+                    applied = true;
+                } catch (RuntimeException e) {
+                    for (Map.Entry<WriteTask, byte[]> content : contents.entrySet()) {
+                        try {
+                            content.getKey().resource.writeUnsynced(ByteBuffer.wrap(content.getValue()), false, storage.getWriteOptions());
+                            content.getKey().commit();
+                        } catch (RuntimeException writeFailure) {
+                            failure = addFailure(failure, writeFailure);
+                        }
+                    }
+                }
+                if (applied) {
+                    commit(storage, new ArrayList<>(contents.keySet()));
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
         }
 
         @Override
@@ -320,10 +1125,85 @@ public class Resource {
         public boolean equals(Object o) {
             return this == o || o != null && getClass() == o.getClass() && Objects.equals(resource, ((WriteTask) o).resource);
         }
+    }
+
+    static class AppendTask extends ResourceTask {
+
+        private static final int INITIAL_BUFFER_CAPACITY = 8192;
+
+        private final byte[] content;
+        private final long maxSizeInBytes;
+        private ByteBuffer buffer; //null if only own content is waiting, otherwise all waiting content
+        private Supplier<byte[]> written; //content of replaced write (appended content follows it), null if appended to file
+
+        AppendTask(Resource resource, byte[] content, DeferPolicy policy) {
+            super(resource, policy.getDelayInMilliseconds(), policy.getMaxWaitInMilliseconds());
+            this.content = content;
+            this.maxSizeInBytes = policy.getMaxSizeInBytes();
+        }
 
         @Override
-        public String toString() {
-            return resource.getUri().toString();
+        protected void absorb(DeferredTask replaced) {
+            super.absorb(replaced);
+            if (replaced instanceof AppendTask) {
+                AppendTask previous = (AppendTask) replaced;
+                buffer = previous.buffer != null ? previous.buffer : append(null, previous.content);
+                written = previous.written;
+            } else if (replaced instanceof WriteTask) {
+                // content provider of user is not called while task is scheduled, but when this task runs
+                written = ((WriteTask) replaced).contentProvider;
+            } else {
+                return;
+            }
+            buffer = append(buffer, content);
+        }
+
+        @Override
+        protected boolean isDue() {
+            return maxSizeInBytes >= 0 && (buffer != null ? buffer.position() : content.length) >= maxSizeInBytes;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer appended = buffer != null ? buffer.flip() : ByteBuffer.wrap(content);
+            if (written != null) {
+                byte[] writtenContent = written.get();
+                if ((long) writtenContent.length + appended.remaining() > Integer.MAX_VALUE - 8) {
+                    throw new StorageException("Waiting appends exceed max buffer size");
+                }
+                appended = ByteBuffer.allocate(writtenContent.length + appended.remaining()).put(writtenContent).put(appended).flip();
+            }
+            resource.writeUnsynced(appended, written == null, resource.storage.getWriteOptions());
+            commit();
+        }
+
+        @Override
+        public int hashCode() {
+            return 37 + resource.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o != null && getClass() == o.getClass() && Objects.equals(resource, ((AppendTask) o).resource);
+        }
+
+        private static ByteBuffer append(ByteBuffer buffer, byte[] bytes) {
+            if (buffer == null || buffer.remaining() < bytes.length) {
+                long required = (buffer != null ? buffer.position() : 0L) + bytes.length;
+                if (required > Integer.MAX_VALUE - 8) {
+                    throw new StorageException("Waiting appends exceed max buffer size");
+                }
+                long capacity = buffer != null ? buffer.capacity() : INITIAL_BUFFER_CAPACITY;
+                while (capacity < required) {
+                    capacity *= 2;
+                }
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+                if (buffer != null) {
+                    grown.put(buffer.flip());
+                }
+                buffer = grown;
+            }
+            return buffer.put(bytes);
         }
     }
 
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+/**
+ * Snapshot of resource metadata read at once. Compressed size and crc are known only for zip entries (otherwise -1).
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ * @see Resource {@link Resource#attributes()}
+ */
+public final class ResourceAttributes {
+
+    static final ResourceAttributes NOT_EXISTS = new ResourceAttributes(false, false, -1, -1, -1, -1);
+
+    private final boolean exists;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final long compressedSize;
+    private final long crc;
+
+    private ResourceAttributes(boolean exists, boolean directory, long size, long lastModified, long compressedSize, long crc) {
+        this.exists = exists;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.compressedSize = compressedSize;
+        this.crc = crc;
+    }
+
+    static ResourceAttributes read(Path path) throws IOException {
+        try {
+            if (path.getFileSystem().supportedFileAttributeViews().contains("zip")) {
+                Map<String, Object> attributes = Files.readAttributes(path, "zip:*");
+                return new ResourceAttributes(true,
+                        (Boolean) attributes.get("isDirectory"),
+                        (Long) attributes.get("size"),
+                        ((FileTime) attributes.get("lastModifiedTime")).toMillis(),
+                        (Long) attributes.get("compressedSize"),
+                        (Long) attributes.get("crc"));
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new ResourceAttributes(true, attributes.isDirectory(), attributes.size(), attributes.lastModifiedTime().toMillis(), -1, -1);
+        } catch (NoSuchFileException e) {
+            return NOT_EXISTS;
+        }
+    }
+
+    static ResourceAttributes of(ZipCentralDirectory.Entry entry) {
+        return new ResourceAttributes(true, false, entry.size, ZipCentralDirectory.toJavaTime(entry.dosTime), entry.compressedSize, entry.crc);
+    }
+
+    static ResourceAttributes directory() {
+        return new ResourceAttributes(true, true, 0, -1, -1, -1);
+    }
+
+    public boolean exists() {
+        return exists;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return last modified time in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceAttributes [exists: " + exists
+                + ", directory: " + directory
+                + ", size: " + size
+                + ", lastModified: " + lastModified
+                + ", compressedSize: " + compressedSize
+                + ", crc: " + crc
+                + "]";
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * LRU cache of resource contents bounded by total size in bytes.
+ * <p>
+ * Writes and deletes of this library invalidate cached paths. Changes made by others are detected too - file of
+ * DIRECTORY storage is validated by its last modified time and size, entries of ZIP storage by crc and size
+ * from central directory, which is read again only when last modified time or size of the archive changes.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ResourceCache {
+
+    private final Storage storage;
+    private final long capacityInBytes;
+    private final LinkedHashMap<String, Content> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeInBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long validatedArchiveStamp = Long.MIN_VALUE;
+
+    ResourceCache(Storage storage, long capacityInBytes) {
+        this.storage = storage;
+        this.capacityInBytes = capacityInBytes;
+    }
+
+    long getCapacityInBytes() {
+        return capacityInBytes;
+    }
+
+    /**
+     * @return cached content (must not be modified) or null
+     */
+    byte[] get(String path) {
+        Content content;
+        synchronized (this) {
+            content = entries.get(path);
+        }
+        if (content != null && isValid(path, content)) {
+            synchronized (this) {
+                hits++;
+            }
+            return content.bytes;
+        }
+        synchronized (this) {
+            if (content != null && entries.get(path) == content) {
+                remove(path);
+            }
+            misses++;
+        }
+        return null;
+    }
+
+    /**
+     * @param stamp attributes of file of DIRECTORY storage read before the content (so content isn't older than stamp),
+     *              null for ZIP storage
+     */
+    void put(String path, byte[] bytes, BasicFileAttributes stamp) {
+        if (bytes.length > capacityInBytes) {
+            return;
+        }
+        Content content;
+        long archiveStamp = Long.MIN_VALUE;
+        if (storage.getType() == StorageType.DIRECTORY) {
+            if (stamp == null || stamp.size() != bytes.length) {
+                return;
+            }
+            content = new Content(bytes, stamp.lastModifiedTime().toMillis());
+        } else {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            content = new Content(bytes, crc.getValue());
+            archiveStamp = readArchiveStamp();
+        }
+        synchronized (this) {
+            if (validatedArchiveStamp == Long.MIN_VALUE) {
+                validatedArchiveStamp = archiveStamp; //content was read from current archive (or from its mount)
+            }
+            remove(path);
+            entries.put(path, content);
+            sizeInBytes += bytes.length;
+            Iterator<Map.Entry<String, Content>> eldest = entries.entrySet().iterator();
+            while (sizeInBytes > capacityInBytes && eldest.hasNext()) {
+                sizeInBytes -= eldest.next().getValue().bytes.length;
+                eldest.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Removes path and everything under it (deleted directory)
+     */
+    synchronized void invalidate(String path) {
+        remove(path);
+        String prefix = path + "/";
+        entries.entrySet().removeIf(entry -> {
+            if (entry.getKey().startsWith(prefix)) {
+                sizeInBytes -= entry.getValue().bytes.length;
+                return true;
+            }
+            return false;
+        });
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+        validatedArchiveStamp = Long.MIN_VALUE;
+    }
+
+    synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, entries.size(), sizeInBytes);
+    }
+
+    /**
+     * Last modified time and size of file of DIRECTORY storage, null for ZIP storage or missing file
+     */
+    static BasicFileAttributes stamp(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private boolean isValid(String path, Content content) {
+        if (storage.getType() == StorageType.DIRECTORY) {
+            BasicFileAttributes attributes = stamp(storage.getPath().resolve(path));
+            return attributes != null && attributes.isRegularFile()
+                    && attributes.size() == content.bytes.length
+                    && attributes.lastModifiedTime().toMillis() == content.stamp;
+        }
+        long archiveStamp = readArchiveStamp();
+        synchronized (this) {
+            if (archiveStamp != validatedArchiveStamp) {
+                revalidateArchive(archiveStamp);
+            }
+            return entries.get(path) == content;
+        }
+    }
+
+    /**
+     * Archive was rewritten (by this library or by others), drops entries which changed
+     */
+    private void revalidateArchive(long archiveStamp) {
+        ZipCentralDirectory centralDirectory = null;
+        if (archiveStamp != -1) {
+            try {
+                centralDirectory = ZipCentralDirectory.read(storage.getPath());
+            } catch (StorageException e) {
+                //invalid or replaced archive - drop all
+            }
+        }
+        Iterator<Map.Entry<String, Content>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Content> entry = iterator.next();
+            ZipCentralDirectory.Entry zipEntry = centralDirectory != null ? centralDirectory.getEntry(entry.getKey()) : null;
+            if (zipEntry == null || zipEntry.crc != entry.getValue().stamp || zipEntry.size != entry.getValue().bytes.length) {
+                sizeInBytes -= entry.getValue().bytes.length;
+                iterator.remove();
+            }
+        }
+        validatedArchiveStamp = archiveStamp;
+    }
+
+    private long readArchiveStamp() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(storage.getPath(), BasicFileAttributes.class);
+            return attributes.lastModifiedTime().toMillis() * 31 + attributes.size();
+        } catch (NoSuchFileException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private void remove(String path) {
+        Content removed = entries.remove(path);
+        if (removed != null) {
+            sizeInBytes -= removed.bytes.length;
+        }
+    }
+
+    private static final class Content {
+
+        private final byte[] bytes;
+        private final long stamp; //last modified time (DIRECTORY) or crc (ZIP)
+
+        private Content(byte[] bytes, long stamp) {
+            this.bytes = bytes;
+            this.stamp = stamp;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Striped locks serializing writes of the same resource (shared by all storages, keyed by absolute file path
+ * or by path of zip entry inside absolute archive path). Reads don't lock.
+ * <p>
+ * Lock is reentrant for thread which holds it, so write holding the lock can write other resource of the same stripe.
+ * Writes of more resources lock all their stripes by {@link #lockAll(Collection)} in stripe order, so they can't
+ * deadlock. Lock of async write is not owned by any thread, it's unlocked by thread which completes the write.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ResourceLocks {
+
+    private static final int STRIPES = 256;
+    private static final Lock[] LOCKS = new Lock[STRIPES];
+
+    static {
+        for (int i = 0; i < STRIPES; i++) {
+            LOCKS[i] = new Lock();
+        }
+    }
+
+    private ResourceLocks() {
+    }
+
+    static Lock get(Path file) {
+        return LOCKS[stripe(file)];
+    }
+
+    /**
+     * Locks stripes of all files, each stripe once and in stripe order
+     *
+     * @return locks for {@link #unlockAll(List)}
+     */
+    static List<Lock> lockAll(Collection<Path> files) {
+        List<Lock> locks = files.stream()
+                .mapToInt(ResourceLocks::stripe)
+                .distinct()
+                .sorted()
+                .mapToObj(stripe -> LOCKS[stripe])
+                .collect(Collectors.toList());
+        locks.forEach(Lock::lock);
+        return locks;
+    }
+
+    static void unlockAll(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    private static int stripe(Path file) {
+        int hash = file.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    static final class Lock {
+
+        private Thread owner; //null if lock is free or locked by async write
+        private int holds;
+
+        private Lock() {
+        }
+
+        synchronized void lock() {
+            Thread current = Thread.currentThread();
+            boolean interrupted = false;
+            while (holds > 0 && owner != current) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            owner = current;
+            holds++;
+            if (interrupted) {
+                current.interrupt();
+            }
+        }
+
+        /**
+         * Locks free lock for async write, lock can be unlocked by any thread
+         */
+        synchronized boolean tryLockAsync() {
+            if (holds > 0) {
+                return false;
+            }
+            holds = 1;
+            return true;
+        }
+
+        synchronized void unlock() {
+            if (holds == 0) {
+                throw new IllegalStateException("Resource lock is not locked");
+            }
+            if (--holds == 0) {
+                owner = null;
+                notifyAll();
+            }
+        }
+    }
+}
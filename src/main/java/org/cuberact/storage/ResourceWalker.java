@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazy depth first walk through storage, directories which can't contain matching resource are skipped.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ResourceWalker implements Iterator<Resource>, Closeable {
+
+    private final Storage storage;
+    private final Path root;
+    private final GlobMatcher globMatcher;
+    private final Deque<DirectoryStream<Path>> openStreams = new ArrayDeque<>();
+    private final Deque<Iterator<Path>> iterators = new ArrayDeque<>();
+    private Resource next;
+
+    ResourceWalker(Storage storage, Path root, GlobMatcher globMatcher) {
+        this.storage = storage;
+        this.root = root;
+        this.globMatcher = globMatcher;
+        open(root);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && !iterators.isEmpty()) {
+            Iterator<Path> iterator = iterators.peek();
+            if (!iterator.hasNext()) {
+                iterators.pop();
+                Storage.closeQuietly(openStreams.pop());
+                continue;
+            }
+            Path child = iterator.next();
+            String subPath = Storage.normalizePath(root.relativize(child).toString());
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                if (globMatcher.mayMatchInside(subPath)) {
+                    open(child);
+                }
+            } else if (globMatcher.matches(subPath)) {
+                next = new Resource(storage, subPath);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public Resource next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Resource resource = next;
+        next = null;
+        return resource;
+    }
+
+    @Override
+    public void close() {
+        iterators.clear();
+        while (!openStreams.isEmpty()) {
+            Storage.closeQuietly(openStreams.pop());
+        }
+    }
+
+    private void open(Path directory) {
+        try {
+            DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory);
+            openStreams.push(directoryStream);
+            iterators.push(directoryStream.iterator());
+        } catch (IOException e) {
+            close();
+            throw new StorageException(e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes content of resource with {@link WriteOptions}. Files of default file system can be written atomically
+ * and synced, files inside zip file system are written in place (durability of ZIP storage is handled by
+ * {@link Storage#sync(Durability)} on the whole archive).
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ResourceWriter {
+
+    private ResourceWriter() {
+    }
+
+    static void write(Path writePath, ByteBuffer content, boolean append, WriteOptions options) throws IOException {
+        Path parentPath = writePath.getParent();
+        if (parentPath != null) {
+            Files.createDirectories(parentPath);
+        }
+        boolean local = writePath.getFileSystem() == FileSystems.getDefault();
+        boolean fsync = local && options.getDurability().compareTo(Durability.FSYNC_FILE) >= 0;
+        if (local && options.isAtomic()) {
+            Path tempPath = writePath.resolveSibling("." + writePath.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                if (append && Files.exists(writePath)) {
+                    Files.copy(writePath, tempPath);
+                }
+                write(tempPath, content, true, fsync);
+                moveAtomically(tempPath, writePath);
+            } catch (IOException | RuntimeException e) {
+                deleteQuietly(tempPath);
+                throw e;
+            }
+        } else {
+            write(writePath, content, append, fsync);
+        }
+        if (local && options.getDurability() == Durability.FSYNC_FILE_AND_DIR) {
+            syncDirectory(parentPath);
+        }
+    }
+
+    /**
+     * Writes file of default file system, content is written by writer directly into file channel
+     * (without directory sync, caller syncs directories of many files at once)
+     */
+    static void write(Path writePath, ChannelWriter writer, WriteOptions options) throws IOException {
+        boolean fsync = options.getDurability().compareTo(Durability.FSYNC_FILE) >= 0;
+        if (options.isAtomic()) {
+            Path tempPath = writePath.resolveSibling("." + writePath.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                write(tempPath, writer, fsync);
+                moveAtomically(tempPath, writePath);
+            } catch (IOException | RuntimeException e) {
+                deleteQuietly(tempPath);
+                throw e;
+            }
+        } else {
+            write(writePath, writer, fsync);
+        }
+    }
+
+    /**
+     * Syncs file of default file system written without {@link WriteOptions} (copied file)
+     */
+    static void sync(Path path, Durability durability) throws IOException {
+        if (durability.compareTo(Durability.FSYNC_FILE) >= 0) {
+            syncFile(path);
+        }
+        if (durability == Durability.FSYNC_FILE_AND_DIR) {
+            syncDirectory(path.getParent());
+        }
+    }
+
+    static void syncFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Syncs directory entries (created or renamed files), ignored where directory can't be opened (Windows)
+     */
+    static void syncDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            //ignore - not supported by platform
+        }
+    }
+
+    /**
+     * Moves file over target, falls back to non atomic move where file system doesn't support it
+     */
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes temp file, failure is ignored
+     */
+    static void deleteQuietly(Path path) {
+        if (path != null) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                //ignore - temp file
+            }
+        }
+    }
+
+    private static void write(Path writePath, ByteBuffer content, boolean append, boolean fsync) throws IOException {
+        OpenOption[] options = {StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING};
+        try (SeekableByteChannel channel = Files.newByteChannel(writePath, options)) {
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            if (fsync && channel instanceof FileChannel) {
+                ((FileChannel) channel).force(true);
+            }
+        }
+    }
+
+    private static void write(Path writePath, ChannelWriter writer, boolean fsync) throws IOException {
+        try (FileChannel channel = FileChannel.open(writePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writer.writeTo(channel);
+            if (fsync) {
+                channel.force(true);
+            }
+        }
+    }
+
+    interface ChannelWriter {
+        void writeTo(FileChannel channel) throws IOException;
+    }
+}
@@ -18,30 +18,59 @@ package org.cuberact.storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
 import java.nio.file.FileSystem;
 import java.nio.file.*;
 import java.nio.file.attribute.*;
-import java.nio.file.spi.*;
-import java.util.AbstractMap.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
 import java.util.stream.*;
 import org.cuberact.storage.deferred.*;
-import static java.util.stream.Collectors.*;
 
 /**
+ * Storage is safe for concurrent use. Reads don't lock (ZIP archive is shared by one pooled mount, read only ZIP
+ * storage reads without any lock). Writes of the same resource are serialized (also between storages of the same
+ * path), writes of different resources of ZIP storage are serialized by zip file system. Operations which replace
+ * whole archive on disk (raw copy, pack) lock the archive, so nobody mounts it meanwhile.
+ * <p>
+ * ZIP archive stays mounted in a pool between operations and its changes are written to disk only when the mount
+ * is closed: after {@link #setZipIdleTimeoutInMilliseconds(long) idle timeout}, on {@link #close()} or on write
+ * with {@link Durability#FLUSH} or stronger {@link WriteOptions}. Until then other processes (and readers of read
+ * only storage of the same archive) see the previous content and the changes are lost with killed process.
+ *
  * @author Michal Nikodim (michal.nikodim@gmail.com)
  */
-public class Storage {
+public class Storage implements AutoCloseable {
+
+    /**
+     * Default idle timeout of pooled zip file system. Changes of ZIP archive with {@link Durability#NONE} reach disk
+     * up to this long after last operation, use {@link #close()} or {@link WriteOptions} to write them sooner.
+     */
+    public static long ZIP_IDLE_TIMEOUT_IN_MILLISECONDS = 3000;
+    public static long JOURNAL_SYNC_INTERVAL_IN_MILLISECONDS = 100;
+    public static long WATCH_COALESCE_IN_MILLISECONDS = 50;
 
     private final Path path;
     private final URI uri;
     private final StorageType type;
     private final Charset charset;
-    private final Predicate<DeferredTask> matcher = task ->
-            task instanceof Resource.WriteTask &&
-                    ((Resource.WriteTask) task).resource.getStorage().equals(Storage.this);
+    private volatile long zipIdleTimeoutInMilliseconds = ZIP_IDLE_TIMEOUT_IN_MILLISECONDS;
+    private volatile boolean indexed;
+    private volatile DeferredExecutor deferredExecutor = DeferredExecutor.getDefault();
+    private volatile DeferPolicy deferPolicy;
+    private volatile WriteOptions writeOptions = WriteOptions.defaults();
+    private volatile Executor asyncExecutor;
+    private volatile ResourceCache cache;
+    private volatile StorageIndex index;
+    private volatile boolean journaled;
+    private StorageJournal journal;
+    private volatile boolean readOnly;
+    private volatile ZipEntryTable entryTable;
+    private volatile StampedCentralDirectory centralDirectory;
+    private final ZipFileSystemPool.WriteListener indexWriter = this::archiveWritten;
 
     public Storage(String path) {
         this(path, null);
@@ -88,16 +117,469 @@ public class Storage {
         return type;
     }
 
+    public long getZipIdleTimeoutInMilliseconds() {
+        return zipIdleTimeoutInMilliseconds;
+    }
+
+    /**
+     * How long the zip file system stays mounted after last operation. Zero means unmount after every operation
+     * (every write rewrites the archive on disk).
+     */
+    public void setZipIdleTimeoutInMilliseconds(long zipIdleTimeoutInMilliseconds) {
+        this.zipIdleTimeoutInMilliseconds = zipIdleTimeoutInMilliseconds;
+    }
+
+    public DeferredExecutor getDeferredExecutor() {
+        return deferredExecutor;
+    }
+
+    /**
+     * Executor for deferred writes of this storage, default is {@link DeferredExecutor#getDefault()}.
+     * Waiting deferred writes are run before the executor is changed.
+     */
+    public void setDeferredExecutor(DeferredExecutor deferredExecutor) {
+        Objects.requireNonNull(deferredExecutor, "DeferredExecutor");
+        this.deferredExecutor.runGroupImmediately(this);
+        this.deferredExecutor = deferredExecutor;
+    }
+
+    public DeferPolicy getDeferPolicy() {
+        DeferPolicy policy = deferPolicy;
+        return policy != null ? policy : DeferPolicy.defaultPolicy();
+    }
+
+    /**
+     * Policy of deferred writes without explicit policy, null means {@link DeferPolicy#defaultPolicy()}
+     */
+    public void setDeferPolicy(DeferPolicy deferPolicy) {
+        this.deferPolicy = deferPolicy;
+    }
+
+    public WriteOptions getWriteOptions() {
+        return writeOptions;
+    }
+
+    /**
+     * Options of writes without explicit options (including deferred writes and batches)
+     */
+    public void setWriteOptions(WriteOptions writeOptions) {
+        this.writeOptions = Objects.requireNonNull(writeOptions, "WriteOptions");
+    }
+
+    /**
+     * Shared cached pool of daemon threads used by storages without own async executor
+     */
+    public static Executor getDefaultAsyncExecutor() {
+        return AsyncExecutorHolder.EXECUTOR;
+    }
+
+    public Executor getAsyncExecutor() {
+        Executor executor = asyncExecutor;
+        return executor != null ? executor : getDefaultAsyncExecutor();
+    }
+
+    /**
+     * Executor of async operations which can't use asynchronous file channel, null means {@link #getDefaultAsyncExecutor()}
+     */
+    public void setAsyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    public long getCacheSizeInBytes() {
+        ResourceCache current = cache;
+        return current != null ? current.getCapacityInBytes() : 0;
+    }
+
+    /**
+     * Contents read by {@link Resource#readToBytes()} and {@link Resource#readToString()} are cached (least recently
+     * used are evicted when total size exceeds the limit). Zero disables the cache.
+     */
+    public void setCacheSizeInBytes(long cacheSizeInBytes) {
+        cache = cacheSizeInBytes > 0 ? new ResourceCache(this, cacheSizeInBytes) : null;
+    }
+
+    public CacheStats getCacheStats() {
+        ResourceCache current = cache;
+        return current != null ? current.getStats() : CacheStats.EMPTY;
+    }
+
+    public void clearCache() {
+        ResourceCache current = cache;
+        if (current != null) {
+            current.clear();
+        }
+    }
+
+    public boolean isJournaled() {
+        return journaled;
+    }
+
+    /**
+     * Deferred writes are logged in journal next to the storage (e.g. 'data.zip.journal') until they are written,
+     * so they survive killed process. Enabling journal replays writes lost by previous process.
+     * Only one journaled storage instance per path is supported.
+     */
+    public synchronized void setJournaled(boolean journaled) {
+        if (this.journaled == journaled) {
+            return;
+        }
+        if (journaled) {
+            StorageJournal opened = StorageJournal.open(StorageJournal.journalPath(path), JOURNAL_SYNC_INTERVAL_IN_MILLISECONDS);
+            try {
+                replay(opened);
+            } catch (RuntimeException e) {
+                opened.close();
+                throw e;
+            }
+            journal = opened;
+            this.journaled = true;
+        } else {
+            deferredExecutor.runGroupImmediately(this);
+            this.journaled = false;
+            closeJournal(true);
+        }
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Read only ZIP storage reads archive without zip file system. Central directory is read once into hash table
+     * of entry names (lazily on first use), content is read by positional reads of one shared file channel, so reads
+     * don't mount anything and don't lock anything. All writes throw {@link StorageException}. External changes
+     * of archive are not detected, call {@link #refreshIndex()}. Only ZIP storage can be read only.
+     *
+     * @throws StorageException if archive has unwritten changes which can't be written now (archive is in use)
+     */
+    public synchronized void setReadOnly(boolean readOnly) {
+        if (this.readOnly == readOnly) {
+            return;
+        }
+        if (readOnly) {
+            if (type != StorageType.ZIP) {
+                throw new StorageException("Only ZIP storage can be read only");
+            }
+            deferredExecutor.runGroupImmediately(this);
+            if (!ZipFileSystemPool.flush(path)) {
+                throw new StorageException("Zip archive " + path + " is in use");
+            }
+            ZipFileSystemPool.close(path);
+        }
+        this.readOnly = readOnly;
+        closeEntryTable();
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    /**
+     * Indexed storage keeps in memory sorted list of all files (lazily built on first use), so
+     * {@link #findResources(String)}, {@link Resource#exists()} and {@link Resource#size()} don't walk the storage.
+     * Index is updated by writes and deletes of this storage. External changes of DIRECTORY storage are detected
+     * by last modified time of directories which can contain requested files (only changed directories are listed
+     * again), external rewrite of zip file is detected by its last modified time and size (index is built again).
+     * Size of file rewritten externally (its directory is not changed) is refreshed by {@link #refreshIndex()}
+     * or by {@link #watch(String, ResourceListener)}.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+        if (!indexed) {
+            index = null;
+        }
+    }
+
+    public void refreshIndex() {
+        index = null;
+        closeEntryTable();
+    }
+
+    /**
+     * Keeps storage mounted until the session is closed. Usable for many operations over one zip file.
+     * For DIRECTORY storage the session does nothing.
+     */
+    public StorageSession openSession() {
+        return new StorageSession(this, openLease(false));
+    }
+
+    /**
+     * Runs waiting deferred writes and unmounts the zip file system, so all changes are written to disk.
+     * Storage remains usable after close, next operation mounts it again.
+     */
+    @Override
+    public void close() {
+        deferredExecutor.runGroupImmediately(this);
+        closeJournal(false);
+        closeEntryTable();
+        if (type == StorageType.ZIP) {
+            ZipFileSystemPool.close(path);
+        }
+    }
+
     public boolean exists() {
-        DeferredExecutor.runImmediately(matcher);
+        deferredExecutor.runGroupImmediately(this);
         return Files.exists(path);
     }
 
     public void delete() {
-        DeferredExecutor.runImmediately(matcher);
+        deferredExecutor.runGroupImmediately(this);
+        closeJournal(true);
+        closeEntryTable();
+        if (type == StorageType.ZIP) {
+            ZipFileSystemPool.forceClose(path);
+        }
         if (exists()) {
             delete(path);
         }
+        index = null;
+        clearCache();
+    }
+
+    /**
+     * Stages all mutations from processor and applies them at once. For ZIP storage the archive is mounted once
+     * and rewritten once (zip file system copies unchanged entries without recompression into temp file
+     * and moves it over the archive).
+     * <p>
+     * If processor fails, nothing is written. Staged mutations are applied in order and the batch is not atomic:
+     * if a mutation fails, the preceding mutations stay applied (written files of DIRECTORY storage, changes
+     * of ZIP storage are written into the archive when it's closed) and the exception is thrown.
+     */
+    public void batch(BatchProcessor processor) {
+        StorageBatch batch = new StorageBatch(this);
+        try {
+            processor.process(batch);
+        } catch (StorageException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new StorageException(t);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        deferredExecutor.runGroupImmediately(this);
+        writeInStorage(fs -> {
+            batch.apply(fs);
+            return null;
+        });
+        if (type == StorageType.ZIP) {
+            ZipFileSystemPool.close(path);
+        }
+        sync(writeOptions.getDurability());
+    }
+
+    /**
+     * Copies all resources matching glob into target storage (with the same paths). Copy between two ZIP storages
+     * moves compressed data without inflating and deflating and rewrites the target archive once.
+     * Copied content is synced by {@link WriteOptions} of target storage.
+     */
+    public void copyTo(Storage target, String glob) {
+        List<Resource> resources = findResources(glob);
+        if (resources.isEmpty()) {
+            return;
+        }
+        target.deferredExecutor.runGroupImmediately(target);
+        List<ResourceLocks.Lock> locks = ResourceLocks.lockAll(resources.stream()
+                .map(resource -> target.path.resolve(resource.getPath()))
+                .collect(Collectors.toList()));
+        try {
+            boolean raw = type == StorageType.ZIP && target.type == StorageType.ZIP && !equals(target)
+                    && copyRaw(this, target, resources.stream().collect(Collectors.toMap(Resource::getPath, Resource::getPath, (a, b) -> a, LinkedHashMap::new)));
+            if (!raw) {
+                StorageSession sourceSession = openSession();
+                try {
+                    StorageSession targetSession = target.openSession();
+                    try {
+                        for (Resource resource : resources) {
+                            resource.copyToInternal(target.getResource(resource.getPath()));
+                        }
+                    } finally {
+                        targetSession.close();
+                    }
+                } finally {
+                    sourceSession.close();
+                }
+            }
+        } finally {
+            ResourceLocks.unlockAll(locks);
+        }
+        target.sync(target.writeOptions.getDurability());
+    }
+
+    /**
+     * Copies zip entries between two archives without recompression.
+     *
+     * @param paths source path to target path
+     * @return false if it is not possible (target archive is in use), nothing was copied
+     */
+    static boolean copyRaw(Storage source, Storage target, Map<String, String> paths) {
+        target.checkWritable();
+        if (!source.exists() || !ZipFileSystemPool.flush(source.path) || !ZipFileSystemPool.beginReplace(target.path)) {
+            return false;
+        }
+        try {
+            ZipArchiveWriter.copyRaw(source.path, paths, target.path);
+        } finally {
+            ZipFileSystemPool.endReplace(target.path);
+        }
+        target.refreshIndex();
+        target.clearCache();
+        return true;
+    }
+
+    /**
+     * Writes snapshot of all resources matching glob into target ZIP storage. Target archive is replaced by new archive
+     * which contains exactly these resources (sorted by path), so it's written only once. Resources are read and
+     * compressed in parallel (async executor of storage). Entry of previous target archive with the same path, size
+     * and modification time (or CRC, see {@link PackOptions#verifyContent()}) is copied without compression.
+     *
+     * @return number of entries reused from previous archive
+     * @throws StorageException if target archive is in use
+     */
+    public int packTo(Storage zip, String glob, PackOptions options) {
+        if (zip.type != StorageType.ZIP) {
+            throw new StorageException("Target storage of pack must be ZIP, was " + zip.type);
+        }
+        if (equals(zip)) {
+            throw new StorageException("Can't pack storage into itself");
+        }
+        zip.checkWritable();
+        List<Resource> resources = findResources(glob, FindOptions.sequential().sorted());
+        zip.deferredExecutor.runGroupImmediately(zip);
+        if (!ZipFileSystemPool.beginReplace(zip.path)) {
+            throw new StorageException("Zip archive " + zip.path + " is in use");
+        }
+        int reused;
+        try (StorageLease lease = openLease(false)) {
+            FileSystem fs = lease.getFileSystem();
+            List<String> names = new ArrayList<>(resources.size());
+            List<Path> files = new ArrayList<>(resources.size());
+            for (Resource resource : resources) {
+                names.add(resource.getPath());
+                files.add(fs.getPath(resource.getPath()));
+            }
+            reused = ZipPacker.pack(names, files, zip.path, options, getAsyncExecutor());
+        } finally {
+            ZipFileSystemPool.endReplace(zip.path);
+        }
+        zip.refreshIndex();
+        zip.clearCache();
+        zip.sync(zip.writeOptions.getDurability());
+        return reused;
+    }
+
+    /**
+     * Extracts all resources matching glob into DIRECTORY storage on all available processors
+     *
+     * @see #extractTo(Storage, String, int)
+     */
+    public List<Resource> extractTo(Storage directory, String glob) {
+        return extractTo(directory, glob, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Extracts all resources matching glob from ZIP storage into DIRECTORY storage (with the same paths). Central
+     * directory of archive which is up to date on disk is read once, entries are inflated in order of their offsets
+     * on at most concurrency threads (async executor of storage and caller thread) and streamed directly into files.
+     * Files are written with write options of target storage.
+     *
+     * @return resources of directory storage written by extract
+     */
+    public List<Resource> extractTo(Storage directory, String glob, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive, was " + concurrency);
+        }
+        if (type != StorageType.ZIP || directory.type != StorageType.DIRECTORY) {
+            throw new StorageException("Extract is possible only from ZIP storage into DIRECTORY storage");
+        }
+        directory.deferredExecutor.runGroupImmediately(directory);
+        List<Resource> resources = findResources(glob);
+        if (resources.isEmpty()) {
+            return resources;
+        }
+        Path root = directory.path.toAbsolutePath().normalize();
+        List<Path> files = new ArrayList<>(resources.size());
+        Set<Path> parents = new LinkedHashSet<>();
+        for (Resource resource : resources) {
+            Path file = directory.path.resolve(resource.getPath());
+            if (!file.normalize().startsWith(root) || file.normalize().equals(root)) {
+                throw new StorageException("Zip entry '" + resource.getPath() + "' is outside of directory " + root);
+            }
+            files.add(file);
+            parents.add(file.getParent());
+        }
+        WriteOptions options = directory.writeOptions;
+        try {
+            for (Path parent : parents) {
+                Files.createDirectories(parent);
+            }
+            if (!extractRaw(resources, files, concurrency, options)) {
+                try (StorageLease lease = openLease(false)) {
+                    FileSystem fs = lease.getFileSystem();
+                    runParallel(resources.size(), concurrency, i -> writeLocked(files.get(i), target -> {
+                        try (InputStream in = Files.newInputStream(fs.getPath(resources.get(i).getPath()))) {
+                            in.transferTo(Channels.newOutputStream(target));
+                        }
+                    }, options));
+                }
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            directory.refreshIndex();
+            directory.clearCache();
+        }
+        if (options.getDurability() == Durability.FSYNC_FILE_AND_DIR) {
+            parents.forEach(ResourceWriter::syncDirectory);
+        }
+        List<Resource> extracted = new ArrayList<>(resources.size());
+        for (Resource resource : resources) {
+            extracted.add(directory.getResource(resource.getPath()));
+        }
+        return extracted;
+    }
+
+    private static void writeLocked(Path file, ResourceWriter.ChannelWriter writer, WriteOptions options) throws IOException {
+        ResourceLocks.Lock lock = ResourceLocks.get(file);
+        lock.lock();
+        try {
+            ResourceWriter.write(file, writer, options);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Extracts entries directly from archive file
+     *
+     * @return false if it is not possible (archive on disk is not up to date or contains unsupported entry), nothing was extracted
+     */
+    private boolean extractRaw(List<Resource> resources, List<Path> files, int concurrency, WriteOptions options) throws IOException {
+        if (!ZipFileSystemPool.flush(path)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+            ZipCentralDirectory.Entry[] entries = new ZipCentralDirectory.Entry[resources.size()];
+            for (int i = 0; i < entries.length; i++) {
+                ZipCentralDirectory.Entry entry = centralDirectory.getEntry(resources.get(i).getPath());
+                if (entry == null || entry.isEncrypted()
+                        || entry.method != ZipCentralDirectory.METHOD_STORED && entry.method != ZipCentralDirectory.METHOD_DEFLATED) {
+                    return false;
+                }
+                entries[i] = entry;
+            }
+            Integer[] order = new Integer[entries.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> entries[i].localHeaderOffset));
+            runParallel(order.length, concurrency, i -> {
+                int index = order[i];
+                writeLocked(files.get(index), target -> ZipCentralDirectory.extractContent(channel, entries[index], target), options);
+            });
+            return true;
+        }
     }
 
     public Resource getResource(String path) {
@@ -105,15 +587,171 @@ public class Storage {
     }
 
     public List<Resource> findResources(String glob) {
-        DeferredExecutor.runImmediately(matcher);
+        return findResources(glob, FindOptions.sequential());
+    }
+
+    public List<Resource> findResources(String glob, FindOptions options) {
+        deferredExecutor.runGroupImmediately(this);
         if (exists()) {
-            return runInStorage(fs -> collectChildren(Storage.this, fs.getPath("/"), new GlobMatcher(glob)));
+            List<Resource> resources;
+            GlobMatcher globMatcher = new GlobMatcher(glob);
+            ZipEntryTable table = getEntryTable();
+            StorageIndex storageIndex = table == null ? getIndex(globMatcher) : null;
+            if (table != null) {
+                resources = table.find(globMatcher).stream()
+                        .map(subPath -> new Resource(this, subPath))
+                        .collect(Collectors.toList());
+            } else if (storageIndex != null) {
+                resources = storageIndex.find(globMatcher).stream()
+                        .map(subPath -> new Resource(this, subPath))
+                        .collect(Collectors.toList());
+            } else if (options.isParallel() && type == StorageType.DIRECTORY) {
+                resources = runInStorage(fs -> collectChildrenParallel(Storage.this, fs.getPath("/"), globMatcher));
+            } else {
+                resources = runInStorage(fs -> collectChildren(Storage.this, fs.getPath("/"), globMatcher));
+            }
+            if (options.isSorted()) {
+                resources.sort(Comparator.comparing(Resource::getPath));
+            }
+            return resources;
         }
         return Collections.emptyList();
     }
 
-    public Resource findResource(String glob) {
+    /**
+     * Reads all resources matching glob with one walk and one mount, reads are spread over at most concurrency
+     * threads (async executor of storage and caller thread). Entries of ZIP archive which is up to date on disk are
+     * read directly from archive file in order of their offsets (sequential I/O) and inflated in parallel.
+     *
+     * @return content of resources in order of {@link #findResources(String)}
+     */
+    public Map<Resource, byte[]> readAll(String glob, int concurrency) {
+        Map<Resource, byte[]> contents = new ConcurrentHashMap<>();
+        List<Resource> resources = readAll(glob, concurrency, contents::put);
+        Map<Resource, byte[]> result = new LinkedHashMap<>();
+        for (Resource resource : resources) {
+            result.put(resource, contents.get(resource));
+        }
+        return result;
+    }
+
+    /**
+     * Variant of {@link #readAll(String, int)} which passes content to consumer as soon as it's read
+     * (consumer is called from reading threads concurrently)
+     *
+     * @return read resources
+     */
+    public List<Resource> readAll(String glob, int concurrency, BiConsumer<Resource, byte[]> consumer) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be positive, was " + concurrency);
+        }
+        deferredExecutor.runGroupImmediately(this);
         List<Resource> resources = findResources(glob);
+        if (resources.isEmpty()) {
+            return resources;
+        }
+        if (type == StorageType.ZIP && ZipFileSystemPool.flush(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+                List<Map.Entry<Resource, ZipCentralDirectory.Entry>> entries = new ArrayList<>(resources.size());
+                for (Resource resource : resources) {
+                    ZipCentralDirectory.Entry entry = centralDirectory.getEntry(resource.getPath());
+                    if (entry == null || entry.isEncrypted()
+                            || entry.method != ZipCentralDirectory.METHOD_STORED && entry.method != ZipCentralDirectory.METHOD_DEFLATED) {
+                        entries = null;
+                        break;
+                    }
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(resource, entry));
+                }
+                if (entries != null) {
+                    entries.sort(Comparator.comparingLong(entry -> entry.getValue().localHeaderOffset));
+                    List<Map.Entry<Resource, ZipCentralDirectory.Entry>> sortedEntries = entries;
+                    runParallel(sortedEntries.size(), concurrency, i -> {
+                        Map.Entry<Resource, ZipCentralDirectory.Entry> entry = sortedEntries.get(i);
+                        consumer.accept(entry.getKey(), ZipCentralDirectory.readContent(channel, entry.getValue()));
+                    });
+                    return resources;
+                }
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+        try (StorageLease lease = openLease(false)) {
+            FileSystem fs = lease.getFileSystem();
+            runParallel(resources.size(), concurrency, i -> {
+                Resource resource = resources.get(i);
+                consumer.accept(resource, Files.readAllBytes(fs.getPath(resource.getPath())));
+            });
+        }
+        return resources;
+    }
+
+    /**
+     * Finds resources on async executor of storage
+     */
+    public CompletableFuture<List<Resource>> findResourcesAsync(String glob) {
+        return findResourcesAsync(glob, FindOptions.sequential());
+    }
+
+    public CompletableFuture<List<Resource>> findResourcesAsync(String glob, FindOptions options) {
+        return CompletableFuture.supplyAsync(() -> findResources(glob, options), getAsyncExecutor());
+    }
+
+    /**
+     * Watches DIRECTORY storage for changes of resources matching glob (made by anybody, including this library).
+     * Changes are coalesced for {@link #WATCH_COALESCE_IN_MILLISECONDS} and delivered to listener on dedicated
+     * thread, index (and cache) of storage is updated before listener is called. Returned watch must be closed.
+     */
+    public StorageWatch watch(String glob, ResourceListener listener) {
+        if (type != StorageType.DIRECTORY) {
+            throw new StorageException("Storage '" + path + "' can't be watched, only DIRECTORY storage is supported");
+        }
+        Objects.requireNonNull(listener, "ResourceListener");
+        prepareStorage();
+        try {
+            return new StorageWatch(this, glob, listener, WATCH_COALESCE_IN_MILLISECONDS);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * Lazy variant of {@link #findResources(String)}. Storage is walked while the stream is consumed
+     * (ZIP storage stays mounted until the stream is closed), so the stream must be closed.
+     */
+    public Stream<Resource> streamResources(String glob) {
+        deferredExecutor.runGroupImmediately(this);
+        if (!exists()) {
+            return Stream.empty();
+        }
+        GlobMatcher globMatcher = new GlobMatcher(glob);
+        ZipEntryTable table = getEntryTable();
+        if (table != null) {
+            return table.find(globMatcher).stream().map(subPath -> new Resource(this, subPath));
+        }
+        StorageIndex storageIndex = getIndex(globMatcher);
+        if (storageIndex != null) {
+            return storageIndex.find(globMatcher).stream().map(subPath -> new Resource(this, subPath));
+        }
+        StorageLease lease = openLease(false);
+        try {
+            ResourceWalker walker = new ResourceWalker(this, lease.getFileSystem().getPath("/"), globMatcher);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walker, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(() -> {
+                        walker.close();
+                        lease.close();
+                    });
+        } catch (RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    public Resource findResource(String glob) {
+        List<Resource> resources;
+        try (Stream<Resource> stream = streamResources(glob)) {
+            resources = stream.limit(2).collect(Collectors.toList());
+        }
         if (resources.size() > 1) {
             StringBuilder sb = new StringBuilder();
             for (Resource resource : resources) {
@@ -151,31 +789,191 @@ public class Storage {
     }
 
     <E> E runInStorage(StorageRunner<E> storageRunner) {
+        return runInStorage(storageRunner, false);
+    }
+
+    <E> E writeInStorage(StorageRunner<E> storageRunner) {
+        return runInStorage(storageRunner, true);
+    }
+
+    /**
+     * Runs write of one resource, writes of the same resource are serialized by {@link ResourceLocks}
+     * (read-modify-write like append is not lost by concurrent write)
+     */
+    <E> E writeResource(String resourcePath, StorageRunner<E> storageRunner) {
+        ResourceLocks.Lock lock = ResourceLocks.get(path.resolve(resourcePath));
+        lock.lock();
         try {
-            if (!Files.exists(path)) {
-                try {
-                    switch (type) {
-                        case DIRECTORY:
-                            Files.createDirectories(path);
-                            break;
-                        case ZIP:
-                            Files.createDirectories(path.getParent());
-                            break;
-                    }
-                } catch (Throwable t) {
-                    throw new StorageException(t);
+            return writeInStorage(storageRunner);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <E> E runInStorage(StorageRunner<E> storageRunner, boolean write) {
+        try (StorageLease lease = openLease(write)) {
+            return storageRunner.run(lease.getFileSystem());
+        } catch (Throwable e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * Opens storage file system for longer usage (streams, channels), lease must be closed.
+     */
+    StorageLease openLease(boolean write) {
+        if (write) {
+            checkWritable();
+        }
+        prepareStorage();
+        if (type == StorageType.ZIP) {
+            ZipFileSystemPool.Mount mount = ZipFileSystemPool.acquire(path);
+            if (write) {
+                mount.markDirty(indexWriter);
+            }
+            return new StorageLease(this, mount.getFileSystem(), mount);
+        }
+        return new StorageLease(this, new StorageFileSystem(path), null);
+    }
+
+    void checkWritable() {
+        if (readOnly) {
+            throw new StorageException("Storage '" + path + "' is read only");
+        }
+    }
+
+    /**
+     * @return entry table of read only ZIP storage (opened on first use) or null if storage is not read only
+     */
+    ZipEntryTable getEntryTable() {
+        if (!readOnly) {
+            return null;
+        }
+        ZipEntryTable current = entryTable;
+        if (current == null || !current.isOpen()) {
+            synchronized (this) {
+                if (!readOnly) {
+                    return null;
+                }
+                current = entryTable;
+                if (current == null || !current.isOpen()) {
+                    current = ZipEntryTable.open(path);
+                    entryTable = current;
                 }
             }
-            if (type == StorageType.ZIP) {
-                try (FileSystem zipFileSystem = ZIP_FILE_SYSTEM_PROVIDER.newFileSystem(path, ZIP_ENV)) {
-                    return storageRunner.run(zipFileSystem);
-                } catch (Throwable e) {
-                    throw new StorageException(e);
+        }
+        return current;
+    }
+
+    /**
+     * @param channel opened ZIP archive of this storage
+     * @return central directory of the archive, parsed again only when the archive was rewritten (other file,
+     * size or last modified time)
+     */
+    ZipCentralDirectory getCentralDirectory(FileChannel channel) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        StampedCentralDirectory current = centralDirectory;
+        if (current == null || !current.isValid(attributes)) {
+            current = new StampedCentralDirectory(ZipCentralDirectory.read(channel), attributes);
+            centralDirectory = current;
+        }
+        return current.directory;
+    }
+
+    private synchronized void closeEntryTable() {
+        if (entryTable != null) {
+            entryTable.close();
+            entryTable = null;
+        }
+    }
+
+    /**
+     * @return up-to-date index or null if storage is not indexed
+     */
+    StorageIndex getIndex() {
+        if (!indexed) {
+            return null;
+        }
+        long stamp = type == StorageType.ZIP ? ZipFileSystemPool.archiveStamp(path) : -1;
+        StorageIndex current = index;
+        if (current == null || current.getStamp() != stamp) {
+            synchronized (this) {
+                current = index;
+                if (current == null || current.getStamp() != stamp) {
+                    current = runInStorage(fs -> StorageIndex.build(fs.getPath("/"), stamp));
+                    index = current;
                 }
             }
-            return storageRunner.run(new StorageFileSystem(path));
-        } catch (Throwable e) {
-            throw new StorageException(e);
+        }
+        return current;
+    }
+
+    /**
+     * @return index with refreshed directories on resource path or null if storage is not indexed
+     */
+    StorageIndex getIndex(String resourcePath) {
+        StorageIndex current = getIndex();
+        if (current != null && type == StorageType.DIRECTORY) {
+            current.refresh(path, resourcePath);
+        }
+        return current;
+    }
+
+    /**
+     * @return index with refreshed directories which can contain matching files or null if storage is not indexed
+     */
+    StorageIndex getIndex(GlobMatcher globMatcher) {
+        StorageIndex current = getIndex();
+        if (current != null && type == StorageType.DIRECTORY) {
+            current.refresh(path, globMatcher);
+        }
+        return current;
+    }
+
+    /**
+     * Archive with changes of this storage only was written to disk, index updated by the changes stays valid
+     */
+    private void archiveWritten(long stampBefore, long stampAfter) {
+        StorageIndex current = index;
+        if (current != null && current.getStamp() == stampBefore) {
+            current.setStamp(stampAfter);
+        }
+    }
+
+    /**
+     * Resource was written or deleted, updates index and invalidates cached content
+     */
+    void updateIndex(String resourcePath, Path resolvedPath) throws IOException {
+        ResourceCache currentCache = cache;
+        if (currentCache != null) {
+            currentCache.invalidate(resourcePath);
+        }
+        StorageIndex current = index;
+        if (current == null) {
+            return;
+        }
+        if (Files.isRegularFile(resolvedPath)) {
+            BasicFileAttributes attributes = Files.readAttributes(resolvedPath, BasicFileAttributes.class);
+            current.put(resourcePath, attributes.size(), attributes.lastModifiedTime().toMillis());
+        } else {
+            current.remove(resourcePath);
+        }
+    }
+
+    private void prepareStorage() {
+        if (!Files.exists(path)) {
+            try {
+                switch (type) {
+                    case DIRECTORY:
+                        Files.createDirectories(path);
+                        break;
+                    case ZIP:
+                        Files.createDirectories(path.getParent());
+                        break;
+                }
+            } catch (Throwable t) {
+                throw new StorageException(t);
+            }
         }
     }
 
@@ -199,12 +997,112 @@ public class Storage {
         return strPath.endsWith(".zip") || strPath.endsWith(".jar") ? StorageType.ZIP : StorageType.DIRECTORY;
     }
 
-    private static final FileSystemProvider ZIP_FILE_SYSTEM_PROVIDER = FileSystemProvider.installedProviders().stream()
-            .filter(fsp -> "jar".equalsIgnoreCase(fsp.getScheme()))
-            .findFirst()
-            .orElseThrow(() -> new StorageException("Can't find ZIP FILE SYSTEM PROVIDER"));
-    private static final Map<String, String> ZIP_ENV = Stream.of(new SimpleEntry<>("create", "true"))
-            .collect(toMap(SimpleEntry::getKey, SimpleEntry::getValue));
+    /**
+     * Makes written ZIP archive durable (files of DIRECTORY storage are synced by {@link ResourceWriter}).
+     * Archive used by other threads is written as soon as they release it (this thread waits).
+     *
+     * @throws StorageException if current thread holds the archive by open session, stream or channel
+     */
+    void sync(Durability durability) {
+        if (type != StorageType.ZIP || durability == Durability.NONE) {
+            return;
+        }
+        ZipFileSystemPool.flushAndWait(path);
+        syncArchive(durability);
+    }
+
+    /**
+     * Makes ZIP archive written by deferred task durable without waiting for other users of the archive (they may wait
+     * for the task): archive in use is written and synced when it's released. Action (null for none) runs when
+     * written content survives killed process, changes of ZIP archive are written to disk for it also with
+     * {@link Durability#NONE} (pooled mount which is not written yet is lost with killed process).
+     */
+    void syncDeferred(Durability durability, Runnable action) {
+        if (type != StorageType.ZIP) {
+            if (action != null) {
+                action.run();
+            }
+        } else if (durability != Durability.NONE || action != null) {
+            ZipFileSystemPool.flushThen(path, () -> {
+                syncArchive(durability);
+                if (action != null) {
+                    action.run();
+                }
+            });
+        }
+    }
+
+    private void syncArchive(Durability durability) {
+        if (durability.compareTo(Durability.FSYNC_FILE) >= 0 && Files.exists(path)) {
+            try {
+                ResourceWriter.syncFile(path);
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+            if (durability == Durability.FSYNC_FILE_AND_DIR) {
+                ResourceWriter.syncDirectory(path.getParent());
+            }
+        }
+    }
+
+    ResourceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Journal of deferred writes (reopened after {@link #close()}), null if storage is not journaled
+     */
+    synchronized StorageJournal getJournal() {
+        if (journaled && journal == null) {
+            journal = StorageJournal.open(StorageJournal.journalPath(path), JOURNAL_SYNC_INTERVAL_IN_MILLISECONDS);
+        }
+        return journal;
+    }
+
+    private void replay(StorageJournal opened) {
+        List<StorageJournal.Record> records = opened.getUncommittedOnOpen();
+        if (records.isEmpty()) {
+            return;
+        }
+        Map<String, Long> sizes = new HashMap<>();
+        batch(batch -> {
+            for (StorageJournal.Record record : records) {
+                if (!record.isAppend()) {
+                    batch.write(record.path, record.content, false);
+                    sizes.put(record.path, (long) record.content.length);
+                    continue;
+                }
+                long size = sizes.computeIfAbsent(record.path, resourcePath -> getResource(resourcePath).writtenSize());
+                if (size >= record.offset + record.content.length) {
+                    continue; //append was written before crash
+                }
+                int written = (int) Math.max(0, size - record.offset);
+                batch.write(record.path, Arrays.copyOfRange(record.content, written, record.content.length), true);
+                sizes.put(record.path, size + record.content.length - written);
+            }
+        });
+        opened.commit(records.stream().mapToLong(record -> record.sequence).toArray());
+    }
+
+    /**
+     * @param deleteEmpty journal file is deleted if no record is pending
+     */
+    private synchronized void closeJournal(boolean deleteEmpty) {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        if (deleteEmpty) {
+            Path journalPath = StorageJournal.journalPath(path);
+            try {
+                if (Files.exists(journalPath) && Files.size(journalPath) == 0) {
+                    Files.delete(journalPath);
+                }
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+    }
 
     public static String normalizePath(String path) {
         String normalized = path.replace('\\', '/');
@@ -227,6 +1125,15 @@ public class Storage {
         try {
             final List<Resource> children = new ArrayList<>();
             Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes basicFileAttributes) {
+                    String subPath = normalizePath(path.relativize(directory).toString());
+                    if (!"".equals(subPath) && !globMatcher.mayMatchInside(subPath)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
                 @Override
                 public FileVisitResult visitFile(Path child, BasicFileAttributes basicFileAttributes) {
                     String subPath = normalizePath(path.relativize(child).toString());
@@ -242,6 +1149,113 @@ public class Storage {
         }
     }
 
+    private static List<Resource> collectChildrenParallel(Storage storage, Path path, GlobMatcher globMatcher) {
+        Queue<Resource> children = new ConcurrentLinkedQueue<>();
+        ForkJoinPool.commonPool().invoke(new CollectChildrenTask(storage, path, path, globMatcher, children));
+        return new ArrayList<>(children);
+    }
+
+    /**
+     * Runs task for indexes 0..count-1 on at most concurrency threads (caller thread is one of them), stops on first failure
+     */
+    private void runParallel(int count, int concurrency, IndexedTask task) {
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int index;
+            while (failure.get() == null && (index = next.getAndIncrement()) < count) {
+                try {
+                    task.run(index);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+        CompletableFuture<?>[] helpers = new CompletableFuture<?>[Math.min(concurrency, count) - 1];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = CompletableFuture.runAsync(worker, getAsyncExecutor());
+        }
+        worker.run();
+        CompletableFuture.allOf(helpers).join();
+        Throwable t = failure.get();
+        if (t != null) {
+            throw t instanceof StorageException ? (StorageException) t : new StorageException(t);
+        }
+    }
+
+    private interface IndexedTask {
+        void run(int index) throws Throwable;
+    }
+
+    private static final class StampedCentralDirectory {
+
+        private final ZipCentralDirectory directory;
+        private final Object fileKey;
+        private final long size;
+        private final long lastModified;
+
+        private StampedCentralDirectory(ZipCentralDirectory directory, BasicFileAttributes attributes) {
+            this.directory = directory;
+            this.fileKey = attributes.fileKey();
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+        }
+
+        private boolean isValid(BasicFileAttributes attributes) {
+            return Objects.equals(fileKey, attributes.fileKey())
+                    && size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
+    private static final class AsyncExecutorHolder {
+
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "StorageAsyncThread-" + COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static final class CollectChildrenTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final transient Storage storage;
+        private final transient Path root;
+        private final transient Path directory;
+        private final transient GlobMatcher globMatcher;
+        private final transient Queue<Resource> children;
+
+        private CollectChildrenTask(Storage storage, Path root, Path directory, GlobMatcher globMatcher, Queue<Resource> children) {
+            this.storage = storage;
+            this.root = root;
+            this.directory = directory;
+            this.globMatcher = globMatcher;
+            this.children = children;
+        }
+
+        @Override
+        protected void compute() {
+            List<CollectChildrenTask> subTasks = new ArrayList<>();
+            try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)) {
+                for (Path child : directoryStream) {
+                    String subPath = normalizePath(root.relativize(child).toString());
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                        if (globMatcher.mayMatchInside(subPath)) {
+                            subTasks.add(new CollectChildrenTask(storage, root, child, globMatcher, children));
+                        }
+                    } else if (globMatcher.matches(subPath)) {
+                        children.add(new Resource(storage, subPath));
+                    }
+                }
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+            invokeAll(subTasks);
+        }
+    }
+
     static void delete(Path path) {
         try {
             Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Mutations staged by {@link Storage#batch(BatchProcessor)}. Nothing is written until the batch processor
+ * returns, then all mutations are applied in order in one storage mount (one archive rewrite for ZIP storage).
+ * Batch is not atomic, see {@link Storage#batch(BatchProcessor)}.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public final class StorageBatch {
+
+    private final Storage storage;
+    private final List<Operation> operations = new ArrayList<>();
+
+    StorageBatch(Storage storage) {
+        this.storage = storage;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public StorageBatch write(String path, CharSequence content, boolean append) {
+        return write(path, content.toString().getBytes(storage.getCharset()), append);
+    }
+
+    public StorageBatch write(String path, byte[] content, boolean append) {
+        operations.add(new Operation(Storage.normalizePath(path), content, append));
+        return this;
+    }
+
+    public StorageBatch delete(String path) {
+        operations.add(new Operation(Storage.normalizePath(path), null, false));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Locks all resources of the batch (in stripe order) and applies mutations
+     */
+    void apply(FileSystem fs) throws IOException {
+        List<ResourceLocks.Lock> locks = ResourceLocks.lockAll(operations.stream()
+                .map(operation -> storage.getPath().resolve(operation.path))
+                .collect(Collectors.toList()));
+        try {
+            for (Operation operation : operations) {
+                Path operationPath = fs.getPath(operation.path);
+                if (operation.content == null) {
+                    if (Files.exists(operationPath)) {
+                        Storage.delete(operationPath);
+                    }
+                } else {
+                    ResourceWriter.write(operationPath, ByteBuffer.wrap(operation.content), operation.append, storage.getWriteOptions());
+                }
+                storage.updateIndex(operation.path, operationPath);
+            }
+        } finally {
+            ResourceLocks.unlockAll(locks);
+        }
+    }
+
+    private static final class Operation {
+
+        private final String path;
+        private final byte[] content;
+        private final boolean append;
+
+        private Operation(String path, byte[] content, boolean append) {
+            this.path = path;
+            this.content = content;
+            this.append = append;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Sorted in-memory snapshot of all files in storage (path, size and last modified time).
+ * <p>
+ * Last modified time of every directory is kept too. Index of DIRECTORY storage is refreshed by
+ * {@link #refresh(Path, String)} and {@link #refresh(Path, GlobMatcher)}: only directories which can contain
+ * requested files are checked and only changed directories (file created, deleted or renamed) are listed again.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class StorageIndex {
+
+    private final NavigableMap<String, Entry> entries = new TreeMap<>();
+    private final NavigableMap<String, FileTime> directories = new TreeMap<>(); //parent is before its children
+    private volatile long stamp;
+
+    private StorageIndex(long stamp) {
+        this.stamp = stamp;
+    }
+
+    static StorageIndex build(Path root, long stamp) {
+        StorageIndex index = new StorageIndex(stamp);
+        try {
+            index.walk(root, root);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+        return index;
+    }
+
+    private void walk(Path root, Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                directories.put(Storage.normalizePath(root.relativize(dir).toString()), attributes.lastModifiedTime());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                String subPath = Storage.normalizePath(root.relativize(file).toString());
+                if (!"".equals(subPath)) {
+                    entries.put(subPath, new Entry(attributes.size(), attributes.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (e instanceof NoSuchFileException) {
+                    return FileVisitResult.CONTINUE; //deleted meanwhile
+                }
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Refreshes indexed directories on the path (parents of the path and the path itself)
+     */
+    synchronized void refresh(Path root, String path) {
+        refreshDirectory(root, "");
+        int slash = path.indexOf('/');
+        while (slash != -1) {
+            refreshDirectory(root, path.substring(0, slash));
+            slash = path.indexOf('/', slash + 1);
+        }
+        refreshDirectory(root, path);
+    }
+
+    /**
+     * Refreshes indexed directories which can contain files matching glob
+     */
+    synchronized void refresh(Path root, GlobMatcher globMatcher) {
+        for (String directory : new ArrayList<>(directories.keySet())) {
+            if ("".equals(directory) || globMatcher.mayMatchInside(directory)) {
+                refreshDirectory(root, directory);
+            }
+        }
+    }
+
+    /**
+     * Lists changed directory again, deleted directory is removed with its subtree, unknown directory is ignored
+     * (it's walked when its changed parent is listed)
+     */
+    private void refreshDirectory(Path root, String directory) {
+        FileTime indexed = directories.get(directory);
+        if (indexed == null) {
+            return;
+        }
+        Path dir = "".equals(directory) ? root : root.resolve(directory);
+        BasicFileAttributes attributes = ResourceCache.stamp(dir);
+        if (attributes == null || !attributes.isDirectory()) {
+            removeDirectory(directory);
+            return;
+        }
+        if (indexed.equals(attributes.lastModifiedTime())) {
+            return;
+        }
+        directories.put(directory, attributes.lastModifiedTime());
+        String prefix = "".equals(directory) ? "" : directory + "/";
+        Set<String> files = new HashSet<>();
+        try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+            for (Path child : children) {
+                String subPath = prefix + child.getFileName();
+                BasicFileAttributes childAttributes;
+                try {
+                    childAttributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue; //deleted meanwhile
+                }
+                if (!childAttributes.isDirectory()) {
+                    files.add(subPath);
+                    entries.put(subPath, new Entry(childAttributes.size(), childAttributes.lastModifiedTime().toMillis()));
+                } else if (!directories.containsKey(subPath)) {
+                    walk(root, child);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            removeDirectory(directory);
+            return;
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+        entries.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet()
+                .removeIf(subPath -> subPath.indexOf('/', prefix.length()) == -1 && !files.contains(subPath));
+    }
+
+    /**
+     * Removes files and directories inside the directory (file with the same path is kept)
+     */
+    private void removeDirectory(String directory) {
+        if ("".equals(directory)) {
+            entries.clear();
+            directories.clear();
+            directories.put("", FileTime.fromMillis(Long.MIN_VALUE)); //listed again when storage is created
+            return;
+        }
+        directories.remove(directory);
+        directories.subMap(directory + "/", true, directory + "0", false).clear(); // '0' follows '/' in ASCII
+        entries.subMap(directory + "/", true, directory + "0", false).clear();
+    }
+
+    long getStamp() {
+        return stamp;
+    }
+
+    void setStamp(long stamp) {
+        this.stamp = stamp;
+    }
+
+    synchronized boolean exists(String path) {
+        if (entries.containsKey(path)) {
+            return true;
+        }
+        String directory = path + "/";
+        String next = entries.ceilingKey(directory);
+        return next != null && next.startsWith(directory);
+    }
+
+    synchronized Entry get(String path) {
+        return entries.get(path);
+    }
+
+    synchronized List<String> find(GlobMatcher globMatcher) {
+        List<String> found = new ArrayList<>();
+        String acceptedDirectory = "";
+        String path = entries.isEmpty() ? null : entries.firstKey();
+        while (path != null) {
+            int end = path.lastIndexOf('/');
+            if (end > 0 && !(end == acceptedDirectory.length() && path.startsWith(acceptedDirectory))) {
+                String rejected = rejectedDirectory(path, end, globMatcher);
+                if (rejected != null) {
+                    path = entries.ceilingKey(rejected + "0"); // '0' follows '/' in ASCII, skips whole directory
+                    continue;
+                }
+                acceptedDirectory = path.substring(0, end);
+            }
+            if (globMatcher.matches(path)) {
+                found.add(path);
+            }
+            path = entries.higherKey(path);
+        }
+        return found;
+    }
+
+    /**
+     * @return first parent directory of path (up to end) which can't contain matching file, null if there is none
+     */
+    static String rejectedDirectory(String path, int end, GlobMatcher globMatcher) {
+        int slash = path.indexOf('/');
+        while (slash != -1 && slash <= end) {
+            String directory = path.substring(0, slash);
+            if (!globMatcher.mayMatchInside(directory)) {
+                return directory;
+            }
+            slash = path.indexOf('/', slash + 1);
+        }
+        return null;
+    }
+
+    synchronized void put(String path, long size, long lastModified) {
+        entries.put(path, new Entry(size, lastModified));
+    }
+
+    synchronized void remove(String path) {
+        entries.remove(path);
+        entries.subMap(path + "/", true, path + "0", false).clear(); // '0' follows '/' in ASCII
+    }
+
+    static final class Entry {
+
+        final long size;
+        final long lastModified;
+
+        private Entry(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * Write ahead journal of deferred writes. Content of deferred write is appended to the journal when the write is
+ * deferred and the record is committed when the write is done and survives killed process (changes of ZIP archive
+ * are written to disk, see {@link Storage#syncDeferred(Durability, Runnable)}). Journal is synced to disk at most once per sync
+ * interval (group fsync), records are in OS cache immediately (they survive killed process). Uncommitted records
+ * are replayed when journal is opened again (see {@link Storage#setJournaled(boolean)}).
+ * <p>
+ * Record: length (int), crc32 of body (int), body. Body: type (byte), sequence (long), then for write and append
+ * path (short length + utf8), content (int length + bytes), for append also offset (long), for commit count (int)
+ * + sequences (longs). Torn record at the end of journal (crashed process) is ignored.
+ * <p>
+ * Offset of append is expected size of resource before the append (size of resource when the first record of
+ * resource is logged, then sizes of logged writes and appends), so replay skips appends which were already written.
+ * <p>
+ * Journal is truncated when all records are committed. While some records are pending, journal is compacted when
+ * committed records take more than half of it (and at least {@link #COMPACT_SIZE_IN_BYTES}): pending records are
+ * copied into new journal, which replaces the old one atomically. So it stays small.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class StorageJournal implements Closeable {
+
+    private static final byte WRITE = 1;
+    private static final byte APPEND = 2;
+    private static final byte COMMIT = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final long COMPACT_SIZE_IN_BYTES = 1024 * 1024;
+
+    private static final ScheduledThreadPoolExecutor SYNCER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "StorageJournalThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path path;
+    private final long syncIntervalInMilliseconds;
+    private final List<Record> uncommittedOnOpen;
+    private final Map<String, Long> expectedSizes = new HashMap<>();
+    private Map<Long, long[]> pending; //sequence -> position and length of uncommitted record, in journal order
+    private long pendingBytes;
+    private FileChannel channel;
+    private long nextSequence;
+    private ScheduledFuture<?> sync;
+
+    private StorageJournal(Path path, long syncIntervalInMilliseconds, FileChannel channel, List<Record> uncommitted,
+                           Map<Long, long[]> pending, long nextSequence) {
+        this.path = path;
+        this.syncIntervalInMilliseconds = syncIntervalInMilliseconds;
+        this.channel = channel;
+        this.uncommittedOnOpen = uncommitted;
+        this.pending = pending;
+        this.pendingBytes = pending.values().stream().mapToLong(record -> record[1]).sum();
+        this.nextSequence = nextSequence;
+    }
+
+    static Path journalPath(Path storagePath) {
+        return storagePath.resolveSibling(storagePath.getFileName() + ".journal");
+    }
+
+    /**
+     * Opens (or creates) journal, reads uncommitted records and cuts torn record at the end
+     */
+    static StorageJournal open(Path path, long syncIntervalInMilliseconds) {
+        try {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                Map<Long, Record> uncommitted = new LinkedHashMap<>();
+                Map<Long, long[]> pending = new LinkedHashMap<>();
+                long nextSequence = 1;
+                long position = 0;
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                CRC32 crc = new CRC32();
+                while (position + HEADER_SIZE <= size) {
+                    header.clear();
+                    readFully(channel, header, position);
+                    int length = header.getInt(0);
+                    if (length < 9 || position + HEADER_SIZE + length > size) {
+                        break;
+                    }
+                    ByteBuffer body = ByteBuffer.allocate(length);
+                    readFully(channel, body, position + HEADER_SIZE);
+                    body.flip();
+                    crc.reset();
+                    crc.update(body.array(), 0, length);
+                    if ((int) crc.getValue() != header.getInt(4)) {
+                        break;
+                    }
+                    byte type = body.get();
+                    long sequence = body.getLong();
+                    if (type == COMMIT) {
+                        int count = body.getInt();
+                        for (int i = 0; i < count; i++) {
+                            long committed = body.getLong();
+                            uncommitted.remove(committed);
+                            pending.remove(committed);
+                        }
+                    } else {
+                        byte[] pathBytes = new byte[body.getShort() & 0xFFFF];
+                        body.get(pathBytes);
+                        byte[] content = new byte[body.getInt()];
+                        body.get(content);
+                        long offset = type == APPEND ? body.getLong() : -1;
+                        uncommitted.put(sequence, new Record(sequence, new String(pathBytes, StandardCharsets.UTF_8), content, offset));
+                        pending.put(sequence, new long[]{position, HEADER_SIZE + length});
+                    }
+                    nextSequence = Math.max(nextSequence, sequence + 1);
+                    position += HEADER_SIZE + length;
+                }
+                channel.truncate(position);
+                channel.position(position);
+                return new StorageJournal(path, syncIntervalInMilliseconds, channel, new ArrayList<>(uncommitted.values()), pending, nextSequence);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Records which were not committed when the journal was opened (writes lost by crashed process), in order
+     */
+    List<Record> getUncommittedOnOpen() {
+        return uncommittedOnOpen;
+    }
+
+    /**
+     * @param waiting deferred write of resource is waiting (its content is not written yet), offset of append continues
+     *                from logged records of resource, otherwise it's the written size (resource could be written
+     *                directly since the last record)
+     * @param size    written size of resource, called only for append
+     * @return sequence of record, used for {@link #commit(long[])}
+     */
+    synchronized long log(String resourcePath, byte[] content, boolean append, boolean waiting, LongSupplier size) {
+        ensureOpen();
+        long sequence = nextSequence++;
+        byte[] pathBytes = resourcePath.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 2 + pathBytes.length + 4 + content.length + (append ? 8 : 0))
+                .put(append ? APPEND : WRITE)
+                .putLong(sequence)
+                .putShort((short) pathBytes.length)
+                .put(pathBytes)
+                .putInt(content.length)
+                .put(content);
+        long expectedSize = content.length;
+        if (append) {
+            Long loggedSize = waiting ? expectedSizes.get(resourcePath) : null;
+            long offset = loggedSize != null ? loggedSize : size.getAsLong();
+            body.putLong(offset);
+            expectedSize += offset;
+        }
+        long[] record = writeRecord(body);
+        expectedSizes.put(resourcePath, expectedSize);
+        pending.put(sequence, record);
+        pendingBytes += record[1];
+        return sequence;
+    }
+
+    /**
+     * Records are done (written to storage), journal is truncated when no record is pending
+     */
+    synchronized void commit(long[] sequences) {
+        if (channel == null || sequences.length == 0) {
+            return;
+        }
+        for (long sequence : sequences) {
+            long[] record = pending.remove(sequence);
+            if (record != null) {
+                pendingBytes -= record[1];
+            }
+        }
+        try {
+            if (pending.isEmpty()) {
+                expectedSizes.clear();
+                pendingBytes = 0;
+                channel.truncate(0);
+                scheduleSync();
+                return;
+            }
+            long size = channel.size();
+            if (size >= COMPACT_SIZE_IN_BYTES && size - pendingBytes > pendingBytes) {
+                compact();
+                return;
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 4 + 8 * sequences.length)
+                .put(COMMIT)
+                .putLong(nextSequence++)
+                .putInt(sequences.length);
+        for (long sequence : sequences) {
+            body.putLong(sequence);
+        }
+        writeRecord(body);
+    }
+
+    synchronized void sync() {
+        sync = null;
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new StorageException(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (sync != null) {
+            sync.cancel(false);
+            sync = null;
+        }
+        if (channel != null) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                throw new StorageException(e);
+            } finally {
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Copies pending records into new journal, which replaces this one. Commit records are not needed there.
+     */
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        Map<Long, long[]> moved = new LinkedHashMap<>();
+        try {
+            try (FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Map.Entry<Long, long[]> record : pending.entrySet()) {
+                    long position = target.position();
+                    long end = record.getValue()[0] + record.getValue()[1];
+                    for (long copied = record.getValue()[0]; copied < end; ) {
+                        long transferred = channel.transferTo(copied, end - copied, target);
+                        if (transferred <= 0) {
+                            throw new StorageException("Unexpected end of journal");
+                        }
+                        copied += transferred;
+                    }
+                    moved.put(record.getKey(), new long[]{position, record.getValue()[1]});
+                }
+                target.force(false);
+            }
+            ResourceWriter.moveAtomically(compacted, path);
+        } catch (IOException | RuntimeException e) {
+            ResourceWriter.deleteQuietly(compacted);
+            throw e;
+        }
+        ResourceWriter.syncDirectory(path.getParent());
+        channel.close();
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        pending = moved;
+    }
+
+    /**
+     * @return position and length of written record
+     */
+    private long[] writeRecord(ByteBuffer body) {
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.limit());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(body.limit()).putInt((int) crc.getValue()).flip();
+        long position;
+        try {
+            position = channel.position();
+            ByteBuffer[] record = {header, body};
+            while (body.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+        scheduleSync();
+        return new long[]{position, HEADER_SIZE + body.limit()};
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new StorageException("Unexpected end of journal");
+            }
+        }
+    }
+
+    private void scheduleSync() {
+        if (syncIntervalInMilliseconds <= 0) {
+            sync();
+        } else if (sync == null) {
+            sync = SYNCER.schedule(this::sync, syncIntervalInMilliseconds, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void ensureOpen() {
+        if (channel == null) {
+            throw new StorageException("Journal '" + path + "' is closed");
+        }
+    }
+
+    static final class Record {
+
+        final long sequence;
+        final String path;
+        final byte[] content;
+        final long offset; //-1 for write
+
+        private Record(long sequence, String path, byte[] content, long offset) {
+            this.sequence = sequence;
+            this.path = path;
+            this.content = content;
+            this.offset = offset;
+        }
+
+        boolean isAppend() {
+            return offset >= 0;
+        }
+    }
+}
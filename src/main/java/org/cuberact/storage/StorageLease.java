@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.Closeable;
+import java.nio.file.FileSystem;
+
+/**
+ * File system of storage held open until the lease is closed (zip file system is returned to the pool).
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class StorageLease implements Closeable {
+
+    private final Storage storage;
+    private final FileSystem fileSystem;
+    private final Thread holder = Thread.currentThread();
+    private ZipFileSystemPool.Mount mount;
+
+    StorageLease(Storage storage, FileSystem fileSystem, ZipFileSystemPool.Mount mount) {
+        this.storage = storage;
+        this.fileSystem = fileSystem;
+        this.mount = mount;
+    }
+
+    FileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mount != null) {
+            ZipFileSystemPool.release(mount, holder, storage.getZipIdleTimeoutInMilliseconds());
+            mount = null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+/**
+ * Keeps zip storage mounted while opened.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ * @see Storage {@link Storage#openSession()}
+ */
+public final class StorageSession implements AutoCloseable {
+
+    private final Storage storage;
+    private final StorageLease lease;
+
+    StorageSession(Storage storage, StorageLease lease) {
+        this.storage = storage;
+        this.lease = lease;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    @Override
+    public void close() {
+        lease.close();
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watch of DIRECTORY storage created by {@link Storage#watch(String, ResourceListener)}, close it to stop watching.
+ * <p>
+ * All directories which can contain matching resources are registered in watch service. Events are collected
+ * for coalesce interval and compared with snapshot of matching files (last modified time and size), so listener
+ * gets one change per resource (created and deleted file in one interval is not reported at all). Overflow of
+ * watch service and created or deleted directories rescan only the affected subtree.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public final class StorageWatch implements AutoCloseable {
+
+    private final Storage storage;
+    private final Path root;
+    private final GlobMatcher globMatcher;
+    private final ResourceListener listener;
+    private final long coalesceInMilliseconds;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final NavigableMap<String, Stamp> files = new TreeMap<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    StorageWatch(Storage storage, String glob, ResourceListener listener, long coalesceInMilliseconds) throws IOException {
+        this.storage = storage;
+        this.root = storage.getPath();
+        this.globMatcher = new GlobMatcher(glob);
+        this.listener = listener;
+        this.coalesceInMilliseconds = coalesceInMilliseconds;
+        this.watchService = root.getFileSystem().newWatchService();
+        try {
+            scan(root, new LinkedHashMap<>());
+        } catch (IOException | RuntimeException e) {
+            watchService.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "StorageWatchThread-" + root.getFileName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * Failed scan (e.g. unreadable directory) is reported to uncaught exception handler of watch thread and whole
+     * tree is scanned again after coalesce interval, changes found before the failure are fired.
+     */
+    private void run() {
+        boolean rescanAll = false;
+        while (!closed) {
+            Map<String, ResourceChange> changes = new LinkedHashMap<>();
+            try {
+                Set<Path> changed = new LinkedHashSet<>();
+                Set<Path> rescans = new LinkedHashSet<>();
+                WatchKey key;
+                if (rescanAll) {
+                    rescans.add(root);
+                    key = watchService.poll(coalesceInMilliseconds, TimeUnit.MILLISECONDS);
+                    rescanAll = false;
+                } else {
+                    key = watchService.take();
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalesceInMilliseconds);
+                while (key != null) {
+                    collect(key, changed, rescans);
+                    long remaining = deadline - System.nanoTime();
+                    key = remaining > 0 ? watchService.poll(remaining, TimeUnit.NANOSECONDS) : watchService.poll();
+                }
+                process(changed, rescans, changes);
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return; //closed
+            } catch (IOException e) {
+                rescanAll = true;
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            } catch (Throwable t) {
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+                return;
+            } finally {
+                fire(changes);
+            }
+        }
+    }
+
+    private void collect(WatchKey key, Set<Path> changed, Set<Path> rescans) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                rescans.add(directory != null ? directory : root);
+            } else if (directory != null) {
+                changed.add(directory.resolve((Path) event.context()));
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+            if (directory != null) {
+                rescans.add(directory);
+            }
+        }
+    }
+
+    private void process(Set<Path> changed, Set<Path> rescans, Map<String, ResourceChange> changes) throws IOException {
+        for (Path path : changed) {
+            String subPath = relativePath(path);
+            if (Files.isDirectory(path) || !subtree(subPath).isEmpty()) {
+                rescans.add(path);
+            } else if (globMatcher.matches(subPath) && !isInside(path, rescans)) {
+                diff(subPath, stamp(path), changes);
+            }
+        }
+        List<Path> roots = new ArrayList<>();
+        for (Path path : rescans) {
+            if (!isInside(path, rescans)) {
+                roots.add(path);
+            }
+        }
+        for (Path path : roots) {
+            scan(path, changes);
+        }
+    }
+
+    /**
+     * Registers directories in subtree and compares its matching files with snapshot. Directory deleted during
+     * the walk is skipped, the rest of the subtree is still walked.
+     */
+    private void scan(Path directory, Map<String, ResourceChange> changes) throws IOException {
+        Map<String, Stamp> current = new HashMap<>();
+        if (Files.isDirectory(directory)) {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    String subPath = relativePath(dir);
+                    if (!"".equals(subPath) && !globMatcher.mayMatchInside(subPath)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    try {
+                        directories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                    } catch (NoSuchFileException e) {
+                        return FileVisitResult.SKIP_SUBTREE; //deleted meanwhile
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    String subPath = relativePath(file);
+                    if (attributes.isRegularFile() && globMatcher.matches(subPath)) {
+                        current.put(subPath, new Stamp(attributes));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                    if (e instanceof NoSuchFileException) {
+                        return FileVisitResult.CONTINUE; //deleted meanwhile
+                    }
+                    throw e;
+                }
+            });
+        }
+        Iterator<Map.Entry<String, Stamp>> iterator = subtree(relativePath(directory)).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Stamp> entry = iterator.next();
+            if (!current.containsKey(entry.getKey())) {
+                iterator.remove();
+                changes.put(entry.getKey(), ResourceChange.DELETED);
+            }
+        }
+        current.forEach((subPath, stamp) -> diff(subPath, stamp, changes));
+    }
+
+    private void diff(String subPath, Stamp stamp, Map<String, ResourceChange> changes) {
+        Stamp previous = stamp != null ? files.put(subPath, stamp) : files.remove(subPath);
+        if (previous == null && stamp != null) {
+            changes.put(subPath, ResourceChange.CREATED);
+        } else if (previous != null && stamp == null) {
+            changes.put(subPath, ResourceChange.DELETED);
+        } else if (previous != null && !previous.equals(stamp)) {
+            changes.put(subPath, ResourceChange.MODIFIED);
+        }
+    }
+
+    private void fire(Map<String, ResourceChange> changes) {
+        for (Map.Entry<String, ResourceChange> change : changes.entrySet()) {
+            if (closed) {
+                return;
+            }
+            try {
+                storage.updateIndex(change.getKey(), root.resolve(change.getKey()));
+                listener.changed(storage.getResource(change.getKey()), change.getValue());
+            } catch (Throwable t) {
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+            }
+        }
+    }
+
+    private NavigableMap<String, Stamp> subtree(String directory) {
+        if ("".equals(directory)) {
+            return files;
+        }
+        String prefix = directory + "/";
+        return files.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private boolean isInside(Path path, Set<Path> directories) {
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (directories.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String relativePath(Path path) {
+        return Storage.normalizePath(root.relativize(path).toString());
+    }
+
+    private static Stamp stamp(Path file) {
+        BasicFileAttributes attributes = ResourceCache.stamp(file);
+        return attributes != null && attributes.isRegularFile() ? new Stamp(attributes) : null;
+    }
+
+    private static final class Stamp {
+
+        private final long lastModified;
+        private final long size;
+
+        private Stamp(BasicFileAttributes attributes) {
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Stamp && lastModified == ((Stamp) o).lastModified && size == ((Stamp) o).size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(lastModified) * 31 + Long.hashCode(size);
+        }
+    }
+}
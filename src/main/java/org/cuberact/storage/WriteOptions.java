@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.util.Objects;
+
+/**
+ * Options of {@link Resource#write(byte[], boolean, WriteOptions)}, default options of storage are used by other
+ * byte writes, deferred writes and batches ({@link Storage#setWriteOptions(WriteOptions)}).
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public final class WriteOptions {
+
+    private static final WriteOptions DEFAULTS = new WriteOptions(Durability.NONE, false);
+
+    private final Durability durability;
+    private final boolean atomic;
+
+    private WriteOptions(Durability durability, boolean atomic) {
+        this.durability = Objects.requireNonNull(durability, "Durability");
+        this.atomic = atomic;
+    }
+
+    /**
+     * Writes in place without sync
+     */
+    public static WriteOptions defaults() {
+        return DEFAULTS;
+    }
+
+    public static WriteOptions durability(Durability durability) {
+        return new WriteOptions(durability, false);
+    }
+
+    /**
+     * File of DIRECTORY storage is written to temp file next to it and moved over it (atomic move if supported),
+     * so readers and crashed process never see partially written file. Append copies the file first.
+     * ZIP archive is always replaced this way by zip file system, so ZIP storage ignores this option.
+     */
+    public WriteOptions atomic() {
+        return new WriteOptions(durability, true);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public boolean isAtomic() {
+        return atomic;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteOptions [durability: " + durability + ", atomic: " + atomic + "]";
+    }
+}
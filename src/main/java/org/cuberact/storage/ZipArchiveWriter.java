@@ -0,0 +1,336 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes zip archive sequentially. Entries are written with already compressed data, so entries from other
+ * archives are copied without inflating and deflating again.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ZipArchiveWriter implements Closeable {
+
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int FLAG_DESCRIPTOR = 0x0008;
+    private static final byte[] NO_EXTRA = new byte[0];
+
+    private final FileChannel channel;
+    private final List<WrittenEntry> entries = new ArrayList<>();
+    private boolean finished;
+
+    ZipArchiveWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Copies compressed data of entry from other archive. Flags, attributes and extra fields of entry are kept.
+     * Data descriptor is written only for encrypted entries, which need it (their check byte depends on it).
+     */
+    void copyRaw(FileChannel source, ZipCentralDirectory.Entry entry) throws IOException {
+        copyRaw(source, entry, entry.name);
+    }
+
+    void copyRaw(FileChannel source, ZipCentralDirectory.Entry entry, String name) throws IOException {
+        copyRaw(source, entry, name, entry.dosTime);
+    }
+
+    void copyRaw(FileChannel source, ZipCentralDirectory.Entry entry, String name, int dosTime) throws IOException {
+        long dataOffset = ZipCentralDirectory.dataOffset(source, entry);
+        boolean descriptor = entry.isEncrypted() && entry.hasDataDescriptor();
+        int flags = entry.flags & ~FLAG_DESCRIPTOR | FLAG_UTF8 | (descriptor ? FLAG_DESCRIPTOR : 0);
+        WrittenEntry written = writeLocalHeader(name, entry.versionMadeBy, flags, entry.method, dosTime, entry.crc, entry.compressedSize, entry.size,
+                entry.internalAttributes, entry.externalAttributes, ZipCentralDirectory.localExtra(source, entry), entry.extra);
+        long position = dataOffset;
+        long end = dataOffset + entry.compressedSize;
+        while (position < end) {
+            long transferred = source.transferTo(position, end - position, channel);
+            if (transferred <= 0) {
+                throw new StorageException("Unexpected end of zip file, entry '" + entry.name + "'");
+            }
+            position += transferred;
+        }
+        if (descriptor) {
+            boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            ByteBuffer dd = buffer(zip64 ? 24 : 16);
+            dd.putInt(DESCRIPTOR_SIGNATURE);
+            dd.putInt((int) entry.crc);
+            if (zip64) {
+                dd.putLong(entry.compressedSize);
+                dd.putLong(entry.size);
+            } else {
+                dd.putInt((int) entry.compressedSize);
+                dd.putInt((int) entry.size);
+            }
+            dd.flip();
+            writeFully(dd);
+        }
+        entries.add(written);
+    }
+
+    /**
+     * Writes entry with data already compressed by given method.
+     */
+    void write(String name, int method, int dosTime, long crc, long size, ByteBuffer data) throws IOException {
+        WrittenEntry written = writeLocalHeader(name, 0, FLAG_UTF8, method, dosTime, crc, data.remaining(), size, 0, 0, NO_EXTRA, NO_EXTRA);
+        writeFully(data);
+        entries.add(written);
+    }
+
+    /**
+     * Writes entry with data already compressed by given method, data are transferred from start of given channel.
+     */
+    void write(String name, int method, int dosTime, long crc, long size, FileChannel data, long compressedSize) throws IOException {
+        WrittenEntry written = writeLocalHeader(name, 0, FLAG_UTF8, method, dosTime, crc, compressedSize, size, 0, 0, NO_EXTRA, NO_EXTRA);
+        long position = 0;
+        while (position < compressedSize) {
+            long transferred = data.transferTo(position, compressedSize - position, channel);
+            if (transferred <= 0) {
+                throw new StorageException("Unexpected end of data of zip entry '" + name + "'");
+            }
+            position += transferred;
+        }
+        entries.add(written);
+    }
+
+    /**
+     * Writes central directory, archive is complete after that.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long cenOffset = channel.position();
+        for (WrittenEntry entry : entries) {
+            boolean zip64Size = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+            boolean zip64Offset = entry.localHeaderOffset >= ZIP64_MAGIC;
+            int extraLength = (zip64Size ? 16 : 0) + (zip64Offset ? 8 : 0);
+            int version = zip64Size || zip64Offset ? 45 : 20;
+            ByteBuffer cen = buffer(46 + entry.name.length + (extraLength > 0 ? 4 + extraLength : 0) + entry.centralExtra.length);
+            cen.putInt(CEN_SIGNATURE);
+            cen.putShort((short) (entry.versionMadeBy & 0xFF00 | Math.max(entry.versionMadeBy & 0xFF, version)));
+            cen.putShort((short) version);
+            cen.putShort((short) entry.flags);
+            cen.putShort((short) entry.method);
+            cen.putInt(entry.dosTime);
+            cen.putInt((int) entry.crc);
+            cen.putInt((int) (zip64Size ? ZIP64_MAGIC : entry.compressedSize));
+            cen.putInt((int) (zip64Size ? ZIP64_MAGIC : entry.size));
+            cen.putShort((short) entry.name.length);
+            cen.putShort((short) ((extraLength > 0 ? 4 + extraLength : 0) + entry.centralExtra.length));
+            cen.putShort((short) 0); // comment length
+            cen.putShort((short) 0); // disk number
+            cen.putShort((short) entry.internalAttributes);
+            cen.putInt(entry.externalAttributes);
+            cen.putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.localHeaderOffset));
+            cen.put(entry.name);
+            if (extraLength > 0) {
+                cen.putShort((short) 0x0001);
+                cen.putShort((short) extraLength);
+                if (zip64Size) {
+                    cen.putLong(entry.size);
+                    cen.putLong(entry.compressedSize);
+                }
+                if (zip64Offset) {
+                    cen.putLong(entry.localHeaderOffset);
+                }
+            }
+            cen.put(entry.centralExtra);
+            cen.flip();
+            writeFully(cen);
+        }
+        long cenEnd = channel.position();
+        long cenSize = cenEnd - cenOffset;
+        if (entries.size() >= 0xFFFF || cenOffset >= ZIP64_MAGIC || cenSize >= ZIP64_MAGIC) {
+            ByteBuffer zip64 = buffer(56 + 20);
+            zip64.putInt(ZIP64_END_SIGNATURE);
+            zip64.putLong(44);
+            zip64.putShort((short) 45);
+            zip64.putShort((short) 45);
+            zip64.putInt(0);
+            zip64.putInt(0);
+            zip64.putLong(entries.size());
+            zip64.putLong(entries.size());
+            zip64.putLong(cenSize);
+            zip64.putLong(cenOffset);
+            zip64.putInt(ZIP64_LOCATOR_SIGNATURE);
+            zip64.putInt(0);
+            zip64.putLong(cenEnd);
+            zip64.putInt(1);
+            zip64.flip();
+            writeFully(zip64);
+        }
+        ByteBuffer end = buffer(22);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) Math.min(entries.size(), 0xFFFF));
+        end.putShort((short) Math.min(entries.size(), 0xFFFF));
+        end.putInt((int) Math.min(cenSize, ZIP64_MAGIC));
+        end.putInt((int) Math.min(cenOffset, ZIP64_MAGIC));
+        end.putShort((short) 0);
+        end.flip();
+        writeFully(end);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * Writes entries of source archive into target archive. Entries of target archive with the same name are replaced,
+     * other entries are kept. All data are copied raw (without recompression) into temp file, which is then moved
+     * over the target archive.
+     *
+     * @param names source entry name to target entry name
+     */
+    static void copyRaw(Path sourceArchive, Map<String, String> names, Path targetArchive) {
+        Path tempFile = null;
+        try {
+            Files.createDirectories(targetArchive.toAbsolutePath().getParent());
+            tempFile = Files.createTempFile(targetArchive.toAbsolutePath().getParent(), targetArchive.getFileName().toString(), ".tmp");
+            try (FileChannel source = FileChannel.open(sourceArchive, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 ZipArchiveWriter writer = new ZipArchiveWriter(target)) {
+                Set<String> replaced = new HashSet<>(names.values());
+                if (Files.exists(targetArchive) && Files.size(targetArchive) > 0) {
+                    try (FileChannel previous = FileChannel.open(targetArchive, StandardOpenOption.READ)) {
+                        for (ZipCentralDirectory.Entry entry : ZipCentralDirectory.read(previous).getEntries()) {
+                            if (!replaced.contains(entry.name)) {
+                                writer.copyRaw(previous, entry);
+                            }
+                        }
+                    }
+                }
+                ZipCentralDirectory sourceDirectory = ZipCentralDirectory.read(source);
+                for (Map.Entry<String, String> name : names.entrySet()) {
+                    ZipCentralDirectory.Entry entry = sourceDirectory.getEntry(name.getKey());
+                    if (entry == null) {
+                        throw new StorageException("Entry '" + name.getKey() + "' not found in zip file '" + sourceArchive + "'");
+                    }
+                    writer.copyRaw(source, entry, name.getValue());
+                }
+            }
+            ResourceWriter.moveAtomically(tempFile, targetArchive);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            ResourceWriter.deleteQuietly(tempFile);
+        }
+    }
+
+    private WrittenEntry writeLocalHeader(String name, int versionMadeBy, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+                                          int internalAttributes, int externalAttributes, byte[] localExtra, byte[] centralExtra) throws IOException {
+        if (finished) {
+            throw new StorageException("Zip archive is already finished");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        if ((zip64 ? 20 : 0) + localExtra.length > 0xFFFF || 28 + centralExtra.length > 0xFFFF) {
+            throw new StorageException("Too long extra field of zip entry '" + name + "'");
+        }
+        WrittenEntry entry = new WrittenEntry(nameBytes, versionMadeBy, flags, method, dosTime, crc, compressedSize, size,
+                internalAttributes, externalAttributes, centralExtra, channel.position());
+        ByteBuffer loc = buffer(30 + nameBytes.length + (zip64 ? 20 : 0) + localExtra.length);
+        loc.putInt(LOC_SIGNATURE);
+        loc.putShort((short) (zip64 ? 45 : 20));
+        loc.putShort((short) flags);
+        loc.putShort((short) method);
+        loc.putInt(dosTime);
+        loc.putInt((int) crc);
+        loc.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        loc.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        loc.putShort((short) nameBytes.length);
+        loc.putShort((short) ((zip64 ? 20 : 0) + localExtra.length));
+        loc.put(nameBytes);
+        if (zip64) {
+            loc.putShort((short) 0x0001);
+            loc.putShort((short) 16);
+            loc.putLong(size);
+            loc.putLong(compressedSize);
+        }
+        loc.put(localExtra);
+        loc.flip();
+        writeFully(loc);
+        return entry;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static final class WrittenEntry {
+
+        private final byte[] name;
+        private final int versionMadeBy;
+        private final int flags;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final int internalAttributes;
+        private final int externalAttributes;
+        private final byte[] centralExtra;
+        private final long localHeaderOffset;
+
+        private WrittenEntry(byte[] name, int versionMadeBy, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+                             int internalAttributes, int externalAttributes, byte[] centralExtra, long localHeaderOffset) {
+            this.name = name;
+            this.versionMadeBy = versionMadeBy;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.internalAttributes = internalAttributes;
+            this.externalAttributes = externalAttributes;
+            this.centralExtra = centralExtra;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Central directory of zip file read directly from archive (without zip file system).
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ZipCentralDirectory {
+
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIZE = 22;
+    private static final int LOC_SIZE = 30;
+    private static final int CEN_SIZE = 46;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int EXTRACT_BUFFER_SIZE = 64 * 1024;
+
+    private final List<Entry> entries;
+    private final Map<String, Entry> entriesByName;
+
+    private ZipCentralDirectory(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        this.entriesByName = new HashMap<>(entries.size() * 2);
+        for (Entry entry : entries) {
+            entriesByName.put(entry.name, entry);
+        }
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    Entry getEntry(String name) {
+        return entriesByName.get(name);
+    }
+
+    static ZipCentralDirectory read(Path archive) {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            return read(channel);
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    static ZipCentralDirectory read(FileChannel channel) throws IOException {
+        long archiveSize = channel.size();
+        int tailSize = (int) Math.min(archiveSize, END_SIZE + 0xFFFF);
+        ByteBuffer tail = readFully(channel, archiveSize - tailSize, tailSize);
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new StorageException("Zip end of central directory not found");
+        }
+        long entryCount = Short.toUnsignedInt(tail.getShort(end + 10));
+        long cenSize = Integer.toUnsignedLong(tail.getInt(end + 12));
+        long cenOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+        long endPosition = archiveSize - tailSize + end;
+        if ((entryCount == 0xFFFF || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) && endPosition >= ZIP64_LOCATOR_SIZE) {
+            ByteBuffer locator = readFully(channel, endPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                ByteBuffer zip64End = readFully(channel, locator.getLong(8), 56);
+                if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new StorageException("Invalid zip64 end of central directory");
+                }
+                entryCount = zip64End.getLong(32);
+                cenSize = zip64End.getLong(40);
+                cenOffset = zip64End.getLong(48);
+            }
+        }
+        if (cenSize > Integer.MAX_VALUE) {
+            throw new StorageException("Zip central directory is too large");
+        }
+        ByteBuffer cen = readFully(channel, cenOffset, (int) cenSize);
+        List<Entry> entries = new ArrayList<>((int) Math.min(entryCount, 1 << 16));
+        int position = 0;
+        while (position + CEN_SIZE <= cen.limit() && cen.getInt(position) == CEN_SIGNATURE) {
+            int versionMadeBy = Short.toUnsignedInt(cen.getShort(position + 4));
+            int flags = Short.toUnsignedInt(cen.getShort(position + 8));
+            int method = Short.toUnsignedInt(cen.getShort(position + 10));
+            int dosTime = cen.getInt(position + 12);
+            long crc = Integer.toUnsignedLong(cen.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(cen.getInt(position + 20));
+            long size = Integer.toUnsignedLong(cen.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(cen.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(cen.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(cen.getShort(position + 32));
+            int internalAttributes = Short.toUnsignedInt(cen.getShort(position + 36));
+            int externalAttributes = cen.getInt(position + 38);
+            long localHeaderOffset = Integer.toUnsignedLong(cen.getInt(position + 42));
+            byte[] nameBytes = new byte[nameLength];
+            cen.position(position + CEN_SIZE);
+            cen.get(nameBytes);
+            int extra = position + CEN_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int tag = Short.toUnsignedInt(cen.getShort(extra));
+                int tagSize = Short.toUnsignedInt(cen.getShort(extra + 2));
+                if (tag == 0x0001) {
+                    int value = extra + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = cen.getLong(value);
+                        value += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = cen.getLong(value);
+                        value += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC) {
+                        localHeaderOffset = cen.getLong(value);
+                    }
+                }
+                extra += 4 + tagSize;
+            }
+            byte[] extraBytes = new byte[extraLength];
+            cen.get(position + CEN_SIZE + nameLength, extraBytes);
+            entries.add(new Entry(new String(nameBytes, StandardCharsets.UTF_8), versionMadeBy, flags, method, dosTime, crc, compressedSize, size,
+                    internalAttributes, externalAttributes, withoutZip64(extraBytes), localHeaderOffset));
+            position += CEN_SIZE + nameLength + extraLength + commentLength;
+        }
+        return new ZipCentralDirectory(entries);
+    }
+
+    /**
+     * @return extra fields of local file header of entry (without zip64 field)
+     */
+    static byte[] localExtra(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer loc = readFully(channel, entry.localHeaderOffset, LOC_SIZE);
+        if (loc.getInt(0) != LOC_SIGNATURE) {
+            throw new StorageException("Invalid zip local header for entry '" + entry.name + "'");
+        }
+        int extraLength = Short.toUnsignedInt(loc.getShort(28));
+        if (extraLength == 0) {
+            return new byte[0];
+        }
+        ByteBuffer extra = readFully(channel, entry.localHeaderOffset + LOC_SIZE + Short.toUnsignedInt(loc.getShort(26)), extraLength);
+        return withoutZip64(extra.array());
+    }
+
+    /**
+     * Zip64 extra field is removed, it's written again with sizes and offset of written entry
+     */
+    private static byte[] withoutZip64(byte[] extra) {
+        ByteBuffer buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer result = ByteBuffer.allocate(extra.length);
+        int position = 0;
+        while (position + 4 <= extra.length) {
+            int tag = Short.toUnsignedInt(buffer.getShort(position));
+            int end = Math.min(extra.length, position + 4 + Short.toUnsignedInt(buffer.getShort(position + 2)));
+            if (tag != 0x0001) {
+                result.put(extra, position, end - position);
+            }
+            position = end;
+        }
+        return Arrays.copyOf(result.array(), result.position());
+    }
+
+    /**
+     * @return position of entry data in archive (behind local file header)
+     */
+    static long dataOffset(FileChannel channel, Entry entry) throws IOException {
+        ByteBuffer loc = readFully(channel, entry.localHeaderOffset, LOC_SIZE);
+        if (loc.getInt(0) != LOC_SIGNATURE) {
+            throw new StorageException("Invalid zip local header for entry '" + entry.name + "'");
+        }
+        return entry.localHeaderOffset + LOC_SIZE + Short.toUnsignedInt(loc.getShort(26)) + Short.toUnsignedInt(loc.getShort(28));
+    }
+
+    /**
+     * Reads (and inflates) content of stored or deflated entry, channel is used only by positional reads
+     * so it can be shared by threads
+     */
+    static byte[] readContent(FileChannel channel, Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8 || entry.compressedSize > Integer.MAX_VALUE - 8) {
+            throw new StorageException("Zip entry '" + entry.name + "' is too big for byte array (" + entry.size + " bytes)");
+        }
+        ByteBuffer data = readFully(channel, dataOffset(channel, entry), (int) entry.compressedSize);
+        if (entry.method == METHOD_STORED) {
+            return data.array();
+        }
+        if (entry.method != METHOD_DEFLATED) {
+            throw new StorageException("Unsupported compression method " + entry.method + " of zip entry '" + entry.name + "'");
+        }
+        byte[] content = new byte[(int) entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data.array());
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != content.length) {
+                throw new StorageException("Invalid compressed data of zip entry '" + entry.name + "'");
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new StorageException("Invalid compressed data of zip entry '" + entry.name + "'", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes (inflated) content of stored or deflated entry into target channel. Stored data are transferred
+     * directly, deflated data are inflated in chunks, so entry of any size is extracted with constant memory.
+     * Source channel is used only by positional reads so it can be shared by threads.
+     */
+    static void extractContent(FileChannel channel, Entry entry, FileChannel target) throws IOException {
+        long dataOffset = dataOffset(channel, entry);
+        if (entry.method == METHOD_STORED) {
+            long transferred = 0;
+            while (transferred < entry.size) {
+                long count = channel.transferTo(dataOffset + transferred, entry.size - transferred, target);
+                if (count <= 0) {
+                    throw new StorageException("Unexpected end of zip file, entry '" + entry.name + "'");
+                }
+                transferred += count;
+            }
+            return;
+        }
+        if (entry.method != METHOD_DEFLATED) {
+            throw new StorageException("Unsupported compression method " + entry.method + " of zip entry '" + entry.name + "'");
+        }
+        ByteBuffer input = ByteBuffer.allocate(EXTRACT_BUFFER_SIZE);
+        ByteBuffer output = ByteBuffer.allocate(EXTRACT_BUFFER_SIZE);
+        Inflater inflater = new Inflater(true);
+        try {
+            long read = 0;
+            long written = 0;
+            while (written < entry.size && !inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (read >= entry.compressedSize) {
+                        break;
+                    }
+                    input.clear();
+                    input.limit((int) Math.min(input.capacity(), entry.compressedSize - read));
+                    int count = channel.read(input, dataOffset + read);
+                    if (count < 0) {
+                        throw new StorageException("Unexpected end of zip file, entry '" + entry.name + "'");
+                    }
+                    read += count;
+                    inflater.setInput(input.array(), 0, input.position());
+                }
+                int inflated = inflater.inflate(output.array());
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    break;
+                }
+                output.clear();
+                output.limit(inflated);
+                while (output.hasRemaining()) {
+                    target.write(output);
+                }
+                written += inflated;
+            }
+            if (written != entry.size) {
+                throw new StorageException("Invalid compressed data of zip entry '" + entry.name + "'");
+            }
+        } catch (DataFormatException e) {
+            throw new StorageException("Invalid compressed data of zip entry '" + entry.name + "'", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return MS-DOS date and time of entry in milliseconds since the epoch (local time zone), -1 if it's invalid
+     */
+    static long toJavaTime(int dosTime) {
+        try {
+            LocalDateTime time = LocalDateTime.of(((dosTime >> 25) & 0x7F) + 1980, (dosTime >> 21) & 0x0F, (dosTime >> 16) & 0x1F,
+                    (dosTime >> 11) & 0x1F, (dosTime >> 5) & 0x3F, (dosTime << 1) & 0x3E);
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeException e) {
+            return -1;
+        }
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new StorageException("Unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static final class Entry {
+
+        final String name;
+        final int versionMadeBy;
+        final int flags;
+        final int method;
+        final int dosTime;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final int internalAttributes;
+        final int externalAttributes;
+        final byte[] extra; //central directory extra fields without zip64 field
+        final long localHeaderOffset;
+
+        private Entry(String name, int versionMadeBy, int flags, int method, int dosTime, long crc, long compressedSize, long size,
+                      int internalAttributes, int externalAttributes, byte[] extra, long localHeaderOffset) {
+            this.name = name;
+            this.versionMadeBy = versionMadeBy;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.internalAttributes = internalAttributes;
+            this.externalAttributes = externalAttributes;
+            this.extra = extra;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        boolean isEncrypted() {
+            return (flags & 1) != 0;
+        }
+
+        boolean hasDataDescriptor() {
+            return (flags & 0x0008) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
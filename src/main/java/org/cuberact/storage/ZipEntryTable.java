@@ -0,0 +1,305 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read only view of zip archive without zip file system. Names of entries and of their parent directories are kept
+ * in flat open addressed hash table (linear probing), content is read by positional reads of one shared file channel.
+ * Table is immutable after it's built, so concurrent reads don't lock anything. Channel closed by interrupt of any
+ * reader is opened again, so only the interrupted reader fails.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ZipEntryTable implements Closeable {
+
+    private final Path archive;
+    private final String[] files; //sorted names of files
+    private volatile FileChannel channel;
+    private volatile boolean closed;
+    private String[] names;
+    private ZipCentralDirectory.Entry[] entries;
+    private int size;
+
+    private ZipEntryTable(Path archive, FileChannel channel, List<ZipCentralDirectory.Entry> centralDirectoryEntries) {
+        this.archive = archive;
+        this.channel = channel;
+        List<String> fileNames = new ArrayList<>();
+        int capacity = Integer.highestOneBit(Math.max(centralDirectoryEntries.size(), 4) * 2) << 1;
+        this.names = new String[capacity];
+        this.entries = new ZipCentralDirectory.Entry[capacity];
+        for (ZipCentralDirectory.Entry entry : centralDirectoryEntries) {
+            String name = entry.isDirectory() ? entry.name.substring(0, entry.name.length() - 1) : entry.name;
+            if (name.startsWith("/") || name.isEmpty()) {
+                continue;
+            }
+            if (!entry.isDirectory()) {
+                fileNames.add(entry.name);
+            }
+            put(name, entry.isDirectory() ? null : entry);
+            int slash = name.lastIndexOf('/');
+            while (slash > 0 && put(name.substring(0, slash), null)) {
+                slash = name.lastIndexOf('/', slash - 1);
+            }
+        }
+        this.files = fileNames.stream().distinct().sorted().toArray(String[]::new);
+    }
+
+    static ZipEntryTable open(Path archive) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(archive, StandardOpenOption.READ);
+            return new ZipEntryTable(archive, channel, ZipCentralDirectory.read(channel).getEntries());
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                Storage.closeQuietly(channel);
+            }
+            throw e instanceof StorageException ? (StorageException) e : new StorageException(e);
+        }
+    }
+
+    boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * @return entry of file or null (directory or not exists)
+     */
+    ZipCentralDirectory.Entry getEntry(String path) {
+        int slot = slot(path, names);
+        return names[slot] != null ? entries[slot] : null;
+    }
+
+    boolean exists(String path) {
+        return path.isEmpty() || names[slot(path, names)] != null;
+    }
+
+    boolean isDirectory(String path) {
+        int slot = slot(path, names);
+        return path.isEmpty() || names[slot] != null && entries[slot] == null;
+    }
+
+    /**
+     * Files in directories which can't contain matching file are skipped (see {@link GlobMatcher#mayMatchInside(String)})
+     */
+    List<String> find(GlobMatcher globMatcher) {
+        List<String> found = new ArrayList<>();
+        String acceptedDirectory = "";
+        int i = 0;
+        while (i < files.length) {
+            String path = files[i];
+            int end = path.lastIndexOf('/');
+            if (end > 0 && !(end == acceptedDirectory.length() && path.startsWith(acceptedDirectory))) {
+                String rejected = StorageIndex.rejectedDirectory(path, end, globMatcher);
+                if (rejected != null) {
+                    int next = Arrays.binarySearch(files, i, files.length, rejected + "0"); // '0' follows '/' in ASCII, skips whole directory
+                    i = next >= 0 ? next : -next - 1;
+                    continue;
+                }
+                acceptedDirectory = path.substring(0, end);
+            }
+            if (globMatcher.matches(path)) {
+                found.add(path);
+            }
+            i++;
+        }
+        return found;
+    }
+
+    byte[] read(ZipCentralDirectory.Entry entry) throws IOException {
+        checkSupported(entry);
+        return read(channel -> ZipCentralDirectory.readContent(channel, entry));
+    }
+
+    /**
+     * Stored entry is mapped from archive, deflated entry is inflated into direct buffer
+     */
+    ByteBuffer map(ZipCentralDirectory.Entry entry) throws IOException {
+        checkSupported(entry);
+        if (entry.method == ZipCentralDirectory.METHOD_STORED) {
+            return read(channel -> channel.map(FileChannel.MapMode.READ_ONLY, ZipCentralDirectory.dataOffset(channel, entry), entry.size)).order(ByteOrder.nativeOrder());
+        }
+        byte[] content = read(entry);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length).order(ByteOrder.nativeOrder());
+        buffer.put(content);
+        buffer.flip();
+        return buffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+    }
+
+    InputStream openInputStream(ZipCentralDirectory.Entry entry) throws IOException {
+        checkSupported(entry);
+        long dataOffset = read(channel -> ZipCentralDirectory.dataOffset(channel, entry));
+        InputStream data = new EntryInputStream(this, dataOffset, dataOffset + entry.compressedSize);
+        if (entry.method == ZipCentralDirectory.METHOD_STORED) {
+            return data;
+        }
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(data, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        Storage.closeQuietly(channel);
+    }
+
+    /**
+     * Runs read of shared channel. Channel closed by interrupt of other reader is opened again and the read is
+     * repeated, interrupted reader fails.
+     */
+    private <T> T read(ChannelRead<T> read) throws IOException {
+        while (true) {
+            FileChannel current = channel;
+            try {
+                return read.read(current);
+            } catch (ClosedChannelException e) {
+                if (closed) {
+                    throw e;
+                }
+                reopen(current);
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private synchronized void reopen(FileChannel failed) throws IOException {
+        if (!closed && channel == failed) {
+            channel = FileChannel.open(archive, StandardOpenOption.READ);
+        }
+    }
+
+    private static void checkSupported(ZipCentralDirectory.Entry entry) {
+        if (entry.isEncrypted()) {
+            throw new StorageException("Encrypted zip entry '" + entry.name + "' is not supported");
+        }
+        if (entry.method != ZipCentralDirectory.METHOD_STORED && entry.method != ZipCentralDirectory.METHOD_DEFLATED) {
+            throw new StorageException("Unsupported compression method " + entry.method + " of zip entry '" + entry.name + "'");
+        }
+    }
+
+    /**
+     * @return false if name is already in table
+     */
+    private boolean put(String name, ZipCentralDirectory.Entry entry) {
+        int slot = slot(name, names);
+        if (names[slot] != null) {
+            if (entry != null) {
+                entries[slot] = entry;
+            }
+            return false;
+        }
+        names[slot] = name;
+        entries[slot] = entry;
+        if (++size * 2 > names.length) {
+            String[] oldNames = names;
+            ZipCentralDirectory.Entry[] oldEntries = entries;
+            names = new String[oldNames.length * 2];
+            entries = new ZipCentralDirectory.Entry[oldNames.length * 2];
+            for (int i = 0; i < oldNames.length; i++) {
+                if (oldNames[i] != null) {
+                    int newSlot = slot(oldNames[i], names);
+                    names[newSlot] = oldNames[i];
+                    entries[newSlot] = oldEntries[i];
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return slot with name or empty slot where the name belongs
+     */
+    private static int slot(String name, String[] names) {
+        int mask = names.length - 1;
+        int hash = name.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (names[slot] != null && !names[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private interface ChannelRead<T> {
+        T read(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Compressed data of entry read by positional reads (shared channel keeps its position)
+     */
+    private static final class EntryInputStream extends InputStream {
+
+        private final ZipEntryTable table;
+        private final long end;
+        private long position;
+
+        private EntryInputStream(ZipEntryTable table, long position, long end) {
+            this.table = table;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int length = (int) Math.min(len, end - position);
+            int count = table.read(channel -> channel.read(ByteBuffer.wrap(b, off, length), position));
+            if (count < 0) {
+                throw new StorageException("Unexpected end of zip file");
+            }
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps mounted zip file systems alive between storage operations.
+ * <p>
+ * Every mounted archive is reference counted. When the last user releases it, the archive stays mounted
+ * for the idle timeout and is closed afterwards (closing the zip file system writes all changes to disk).
+ * Archives are pooled by path, so all {@link Storage} instances pointing to the same file share one mount.
+ * Zip file system serializes writes of the mounted archive. Archive which is rewritten without zip file system
+ * (raw copy, pack) is locked by {@link #beginReplace(Path)}, so nobody mounts it until it's replaced on disk.
+ * Zip file systems are opened and closed (archive is rewritten) outside of pool lock, only users of the same
+ * archive wait meanwhile.
+ * <p>
+ * Archive closed after idle timeout is written on evictor thread. If it can't be written, the failure is reported
+ * to uncaught exception handler of the thread and thrown by the next operation with the archive (changes of closed
+ * zip file system can't be written again).
+ * <p>
+ * All archives are closed in shutdown hook. Archives in use (e.g. by deferred writes run in shutdown hook of deferred
+ * executor) are closed when they are released.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ZipFileSystemPool {
+
+    private static final FileSystemProvider ZIP_FILE_SYSTEM_PROVIDER = FileSystemProvider.installedProviders().stream()
+            .filter(fsp -> "jar".equalsIgnoreCase(fsp.getScheme()))
+            .findFirst()
+            .orElseThrow(() -> new StorageException("Can't find ZIP FILE SYSTEM PROVIDER"));
+    private static final Map<String, String> ZIP_ENV = Map.of("create", "true");
+
+    private static final Map<Path, Mount> MOUNTS = new HashMap<>();
+    private static final Set<Path> REPLACING = new HashSet<>();
+    private static final Set<Path> IN_TRANSITION = new HashSet<>();
+    private static final Map<Path, StorageException> FAILED_EVICTIONS = new HashMap<>();
+    private static boolean shutdown;
+    private static final ScheduledThreadPoolExecutor EVICTOR = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "ZipFileSystemPoolThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EVICTOR.setRemoveOnCancelPolicy(true);
+        Runtime.getRuntime().addShutdownHook(new Thread(ZipFileSystemPool::closeAll, "ZipFileSystemPoolThread - shutdown"));
+    }
+
+    private ZipFileSystemPool() {
+    }
+
+    static Mount acquire(Path path) {
+        synchronized (MOUNTS) {
+            awaitAvailable(path, true);
+            throwFailedEviction(path);
+            Mount mount = MOUNTS.get(path);
+            if (mount != null && mount.fileSystem.isOpen()) {
+                mount.hold();
+                return mount;
+            }
+            IN_TRANSITION.add(path);
+        }
+        Mount mount = null;
+        try {
+            FileSystem fileSystem = ZIP_FILE_SYSTEM_PROVIDER.newFileSystem(path, ZIP_ENV);
+            mount = new Mount(path, fileSystem, archiveStamp(path)); //archive is not written until it's closed
+            return mount;
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            synchronized (MOUNTS) {
+                if (mount != null) {
+                    MOUNTS.put(path, mount);
+                    mount.hold();
+                }
+                IN_TRANSITION.remove(path);
+                MOUNTS.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param holder thread which acquired the mount
+     */
+    static void release(Mount mount, Thread holder, long idleTimeoutInMilliseconds) {
+        Mount detached = null;
+        synchronized (MOUNTS) {
+            mount.holders.computeIfPresent(holder, (thread, count) -> count > 1 ? count - 1 : null);
+            if (--mount.refCount > 0 || MOUNTS.get(mount.path) != mount) {
+                return;
+            }
+            if (mount.flushing) {
+                MOUNTS.notifyAll(); // flushing thread closes it
+                return;
+            }
+            if (mount.closeOnRelease || shutdown || idleTimeoutInMilliseconds <= 0) {
+                detached = detach(mount);
+            } else {
+                mount.eviction = EVICTOR.schedule(() -> evict(mount), idleTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+            }
+        }
+        closeDetached(detached);
+    }
+
+    /**
+     * @return stamp of archive on disk (last modified time and size), -1 if it can't be read
+     */
+    static long archiveStamp(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.lastModifiedTime().toMillis() * 31 + attributes.size();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    static boolean isMounted(Path path) {
+        synchronized (MOUNTS) {
+            return MOUNTS.containsKey(path);
+        }
+    }
+
+    /**
+     * Writes changes of mounted archive to disk if possible.
+     *
+     * @return true if archive on disk contains all changes
+     */
+    static boolean flush(Path path) {
+        Mount detached;
+        synchronized (MOUNTS) {
+            awaitAvailable(path, false);
+            throwFailedEviction(path);
+            Mount mount = MOUNTS.get(path);
+            if (mount == null || !mount.dirty) {
+                return true;
+            }
+            if (mount.refCount > 0) {
+                return false;
+            }
+            detached = detach(mount);
+        }
+        closeDetached(detached);
+        return true;
+    }
+
+    /**
+     * Writes changes of mounted archive to disk. If the archive is in use, waits until all users release it
+     * (new users wait meanwhile, users which already hold it can acquire it again).
+     *
+     * @throws StorageException if current thread holds the archive (session, stream or channel), it would wait for itself
+     */
+    static void flushAndWait(Path path) {
+        Mount detached = null;
+        synchronized (MOUNTS) {
+            awaitAvailable(path, false);
+            throwFailedEviction(path);
+            Mount mount = MOUNTS.get(path);
+            if (mount == null || !mount.dirty) {
+                return;
+            }
+            if (mount.holders.containsKey(Thread.currentThread())) {
+                throw new StorageException("Zip archive " + path + " can't be written to disk while it's used by current thread (session, stream or channel)");
+            }
+            mount.flushing = true;
+            boolean interrupted = false;
+            try {
+                while (mount.refCount > 0 && MOUNTS.get(path) == mount) {
+                    try {
+                        MOUNTS.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (MOUNTS.get(path) == mount) {
+                    detached = detach(mount);
+                } else {
+                    awaitAvailable(path, false); // closed by other thread meanwhile
+                }
+            } finally {
+                mount.flushing = false;
+                MOUNTS.notifyAll();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        closeDetached(detached);
+    }
+
+    /**
+     * Writes changes of mounted archive to disk and runs the action afterwards. Unlike {@link #flushAndWait(Path)}
+     * it never waits for users of the archive (deferred writes must not wait for sessions, which may wait for them):
+     * archive in use by any thread (session, stream or channel) is written when it's released and the action runs
+     * after that. Action doesn't run if the archive can't be written.
+     */
+    static void flushThen(Path path, Runnable action) {
+        Mount detached = null;
+        synchronized (MOUNTS) {
+            awaitNotInTransition(path);
+            throwFailedEviction(path);
+            Mount mount = MOUNTS.get(path);
+            if (mount != null && mount.dirty) {
+                mount.afterClose.add(action);
+                if (mount.refCount > 0) {
+                    mount.closeOnRelease = true;
+                    return;
+                }
+                detached = detach(mount);
+            }
+        }
+        if (detached == null) {
+            action.run();
+        } else {
+            closeDetached(detached);
+        }
+    }
+
+    /**
+     * Takes exclusive access to the archive, so it can be replaced on disk. Archive is closed and nobody can mount
+     * it (or replace it) until {@link #endReplace(Path)}. Caller must not mount the archive meanwhile.
+     *
+     * @return false if archive is in use, nothing is locked
+     */
+    static boolean beginReplace(Path path) {
+        Mount detached = null;
+        synchronized (MOUNTS) {
+            awaitAvailable(path, false);
+            Mount mount = MOUNTS.get(path);
+            if (mount != null) {
+                if (mount.refCount > 0) {
+                    return false;
+                }
+                detached = detach(mount);
+            }
+            REPLACING.add(path);
+        }
+        try {
+            closeDetached(detached);
+        } catch (RuntimeException e) {
+            endReplace(path);
+            throw e;
+        }
+        return true;
+    }
+
+    static void endReplace(Path path) {
+        synchronized (MOUNTS) {
+            REPLACING.remove(path);
+            MOUNTS.notifyAll();
+        }
+    }
+
+    /**
+     * Closes the archive as soon as nobody uses it.
+     */
+    static void close(Path path) {
+        Mount detached = null;
+        synchronized (MOUNTS) {
+            throwFailedEviction(path);
+            Mount mount = MOUNTS.get(path);
+            if (mount != null) {
+                if (mount.refCount > 0) {
+                    mount.closeOnRelease = true;
+                } else {
+                    detached = detach(mount);
+                }
+            }
+        }
+        closeDetached(detached);
+    }
+
+    /**
+     * Closes the archive immediately, regardless of its users (used before the archive is deleted).
+     */
+    static void forceClose(Path path) {
+        Mount detached;
+        synchronized (MOUNTS) {
+            awaitAvailable(path, false);
+            Mount mount = MOUNTS.get(path);
+            if (mount == null) {
+                return;
+            }
+            detached = detach(mount);
+        }
+        closeDetached(detached);
+    }
+
+    /**
+     * Closes all archives which are not in use, archives in use (and mounted later) are closed when released
+     */
+    static void closeAll() {
+        List<Mount> mounts = new ArrayList<>();
+        synchronized (MOUNTS) {
+            shutdown = true;
+            for (Mount mount : new ArrayList<>(MOUNTS.values())) {
+                if (mount.refCount > 0) {
+                    mount.closeOnRelease = true;
+                } else {
+                    mounts.add(detach(mount));
+                }
+            }
+        }
+        StorageException failure = null;
+        for (Mount mount : mounts) {
+            try {
+                closeDetached(mount);
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e instanceof StorageException ? (StorageException) e : new StorageException(e);
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Waits until path is not opened, closed or replaced by other thread and until its mount is not flushing
+     * (holder of flushing mount can acquire it again). Must be called with pool lock.
+     */
+    private static void awaitAvailable(Path path, boolean allowHolder) {
+        awaitWhile(() -> REPLACING.contains(path) || IN_TRANSITION.contains(path) || isFlushing(path, allowHolder));
+    }
+
+    /**
+     * Waits until path is not opened, closed or replaced by other thread (flushing mount is not awaited, its flush
+     * waits for users). Must be called with pool lock.
+     */
+    private static void awaitNotInTransition(Path path) {
+        awaitWhile(() -> REPLACING.contains(path) || IN_TRANSITION.contains(path));
+    }
+
+    private static void awaitWhile(BooleanSupplier condition) {
+        boolean interrupted = false;
+        while (condition.getAsBoolean()) {
+            try {
+                MOUNTS.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isFlushing(Path path, boolean allowHolder) {
+        Mount mount = MOUNTS.get(path);
+        return mount != null && mount.flushing && !(allowHolder && mount.holders.containsKey(Thread.currentThread()));
+    }
+
+    private static void evict(Mount mount) {
+        Mount detached = null;
+        synchronized (MOUNTS) {
+            if (mount.refCount == 0 && MOUNTS.get(mount.path) == mount) {
+                detached = detach(mount);
+            }
+        }
+        try {
+            closeDetached(detached);
+        } catch (RuntimeException e) {
+            StorageException failure = new StorageException("Changes of zip archive " + mount.path + " were not written to disk", e);
+            synchronized (MOUNTS) {
+                FAILED_EVICTIONS.put(mount.path, failure);
+            }
+            Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, failure);
+        }
+    }
+
+    /**
+     * Failure of archive written after idle timeout is thrown once, by the next operation with the archive.
+     * Must be called with pool lock.
+     */
+    private static void throwFailedEviction(Path path) {
+        if (!FAILED_EVICTIONS.isEmpty()) {
+            StorageException failure = FAILED_EVICTIONS.remove(path);
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Removes mount from pool, users of the path wait until it's closed by {@link #closeDetached(Mount)}.
+     * Must be called with pool lock.
+     */
+    private static Mount detach(Mount mount) {
+        mount.cancelEviction();
+        MOUNTS.remove(mount.path, mount);
+        IN_TRANSITION.add(mount.path);
+        return mount;
+    }
+
+    /**
+     * Closes detached mount outside of pool lock (closing zip file system rewrites the archive, other archives
+     * are not blocked meanwhile)
+     */
+    private static void closeDetached(Mount mount) {
+        if (mount == null) {
+            return;
+        }
+        try {
+            mount.fileSystem.close();
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            synchronized (MOUNTS) {
+                IN_TRANSITION.remove(mount.path);
+                MOUNTS.notifyAll();
+            }
+        }
+        WriteListener writer;
+        synchronized (MOUNTS) {
+            writer = mount.writers.size() == 1 ? mount.writers.iterator().next() : null;
+        }
+        if (writer != null) {
+            writer.archiveWritten(mount.stampOnOpen, archiveStamp(mount.path));
+        }
+        mount.afterClose.forEach(Runnable::run);
+    }
+
+    /**
+     * Writer of mounted archive, notified when the archive is written to disk if nobody else wrote to it
+     */
+    interface WriteListener {
+
+        /**
+         * @param stampBefore stamp of archive on disk when it was mounted (see {@link #archiveStamp(Path)})
+         * @param stampAfter  stamp of written archive
+         */
+        void archiveWritten(long stampBefore, long stampAfter);
+    }
+
+    static final class Mount {
+
+        private final Path path;
+        private final FileSystem fileSystem;
+        private final long stampOnOpen;
+        private final Map<Thread, Integer> holders = new HashMap<>();
+        private final Set<WriteListener> writers = new HashSet<>();
+        private final List<Runnable> afterClose = new ArrayList<>(); //run when the archive is written to disk
+        private int refCount;
+        private boolean flushing;
+        private boolean closeOnRelease;
+        private volatile boolean dirty;
+        private ScheduledFuture<?> eviction;
+
+        private Mount(Path path, FileSystem fileSystem, long stampOnOpen) {
+            this.path = path;
+            this.fileSystem = fileSystem;
+            this.stampOnOpen = stampOnOpen;
+        }
+
+        FileSystem getFileSystem() {
+            return fileSystem;
+        }
+
+        void markDirty(WriteListener writer) {
+            synchronized (MOUNTS) {
+                writers.add(writer);
+            }
+            dirty = true;
+        }
+
+        private void hold() {
+            refCount++;
+            holders.merge(Thread.currentThread(), 1, Integer::sum);
+            cancelEviction();
+        }
+
+        private void cancelEviction() {
+            if (eviction != null) {
+                eviction.cancel(false);
+                eviction = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2017 Michal Nikodim
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.cuberact.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Packs files into new zip archive. Files are read and deflated in parallel, entries are written in given order
+ * by one writer. Entry of previous archive with the same name, size and modification time (or CRC) is copied raw
+ * without deflating again.
+ * <p>
+ * Files up to {@link #IN_MEMORY_LIMIT} are read and deflated in memory. Larger files are read through small buffers
+ * and deflated into temp file next to the target archive, so memory used by packing doesn't depend on size of files.
+ *
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+final class ZipPacker {
+
+    static final int IN_MEMORY_LIMIT = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ZipPacker() {
+    }
+
+    /**
+     * @param names entry names
+     * @param files files with content of entries (in the same order as names)
+     * @return number of entries reused from previous archive
+     */
+    static int pack(List<String> names, List<Path> files, Path targetArchive, PackOptions options, Executor executor) {
+        Path tempFile = null;
+        try {
+            Files.createDirectories(targetArchive.toAbsolutePath().getParent());
+            Path directory = targetArchive.toAbsolutePath().getParent();
+            tempFile = Files.createTempFile(directory, targetArchive.getFileName().toString(), ".tmp");
+            int reused = 0;
+            try (FileChannel previous = Files.exists(targetArchive) && Files.size(targetArchive) > 0 ? FileChannel.open(targetArchive, StandardOpenOption.READ) : null;
+                 FileChannel target = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 ZipArchiveWriter writer = new ZipArchiveWriter(target)) {
+                ZipCentralDirectory previousDirectory = previous != null ? ZipCentralDirectory.read(previous) : null;
+                // at most concurrency entries are prepared at once, so executor is never asked for more threads
+                int window = options.getConcurrency();
+                Deque<CompletableFuture<PackedEntry>> pending = new ArrayDeque<>(window);
+                int next = 0;
+                try {
+                    while (next < names.size() || !pending.isEmpty()) {
+                        while (next < names.size() && pending.size() < window) {
+                            String name = names.get(next);
+                            Path file = files.get(next);
+                            ZipCentralDirectory.Entry previousEntry = previousDirectory != null ? reusable(previousDirectory.getEntry(name)) : null;
+                            pending.add(CompletableFuture.supplyAsync(() -> prepare(name, file, previousEntry, options, directory), executor));
+                            next++;
+                        }
+                        PackedEntry entry = pending.poll().join();
+                        try {
+                            if (entry.reused != null) {
+                                writer.copyRaw(previous, entry.reused, entry.name, entry.dosTime);
+                                reused++;
+                            } else if (entry.spill != null) {
+                                try (FileChannel spill = FileChannel.open(entry.spill, StandardOpenOption.READ)) {
+                                    writer.write(entry.name, entry.method, entry.dosTime, entry.crc, entry.size, spill, entry.compressedSize);
+                                }
+                            } else {
+                                writer.write(entry.name, entry.method, entry.dosTime, entry.crc, entry.size, entry.data);
+                            }
+                        } finally {
+                            ResourceWriter.deleteQuietly(entry.spill);
+                        }
+                    }
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof StorageException ? (StorageException) e.getCause() : new StorageException(e.getCause());
+                } finally {
+                    // entries being prepared are awaited (at most concurrency), so their temp files are not left behind
+                    for (CompletableFuture<PackedEntry> future : pending) {
+                        try {
+                            ResourceWriter.deleteQuietly(future.join().spill);
+                        } catch (CompletionException e) {
+                            //ignore - archive is not written anyway
+                        }
+                    }
+                }
+            }
+            ResourceWriter.moveAtomically(tempFile, targetArchive);
+            return reused;
+        } catch (IOException e) {
+            throw new StorageException(e);
+        } finally {
+            ResourceWriter.deleteQuietly(tempFile);
+        }
+    }
+
+    static int toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static ZipCentralDirectory.Entry reusable(ZipCentralDirectory.Entry entry) {
+        if (entry == null || entry.isDirectory() || entry.isEncrypted()
+                || entry.method != ZipCentralDirectory.METHOD_STORED && entry.method != ZipCentralDirectory.METHOD_DEFLATED) {
+            return null;
+        }
+        return entry;
+    }
+
+    private static PackedEntry prepare(String name, Path file, ZipCentralDirectory.Entry previousEntry, PackOptions options, Path spillDirectory) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            int dosTime = toDosTime(attributes.lastModifiedTime().toMillis());
+            if (previousEntry != null && !options.isVerifyContent() && previousEntry.size == attributes.size() && previousEntry.dosTime == dosTime) {
+                return new PackedEntry(name, dosTime, previousEntry);
+            }
+            if (attributes.size() > IN_MEMORY_LIMIT) {
+                return prepareSpilled(name, file, dosTime, previousEntry, options, spillDirectory);
+            }
+            byte[] content = Files.readAllBytes(file);
+            CRC32 crc32 = new CRC32();
+            crc32.update(content);
+            long crc = crc32.getValue();
+            if (previousEntry != null && previousEntry.size == content.length && previousEntry.crc == crc) {
+                return new PackedEntry(name, dosTime, previousEntry);
+            }
+            byte[] compressed = deflate(content, options.getLevel());
+            if (compressed == null) {
+                return new PackedEntry(name, ZipCentralDirectory.METHOD_STORED, dosTime, crc, content.length, ByteBuffer.wrap(content));
+            }
+            return new PackedEntry(name, ZipCentralDirectory.METHOD_DEFLATED, dosTime, crc, content.length, ByteBuffer.wrap(compressed));
+        } catch (IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    /**
+     * Content of large file is deflated into temp file. If it's not smaller, file is read again and stored into temp
+     * file with its own CRC, so written entry is consistent even if file is changed meanwhile.
+     */
+    private static PackedEntry prepareSpilled(String name, Path file, int dosTime, ZipCentralDirectory.Entry previousEntry, PackOptions options,
+                                              Path spillDirectory) throws IOException {
+        Path spill = Files.createTempFile(spillDirectory, file.getFileName().toString(), ".spill");
+        try {
+            CRC32 crc32 = new CRC32();
+            long size = 0;
+            long compressedSize = -1;
+            Deflater deflater = options.getLevel() != Deflater.NO_COMPRESSION ? new Deflater(options.getLevel(), true) : null;
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream out = Files.newOutputStream(spill)) {
+                byte[] input = new byte[BUFFER_SIZE];
+                byte[] output = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(input)) >= 0) {
+                    crc32.update(input, 0, read);
+                    size += read;
+                    if (deflater != null) {
+                        deflater.setInput(input, 0, read);
+                        while (!deflater.needsInput()) {
+                            out.write(output, 0, deflater.deflate(output));
+                        }
+                    }
+                }
+                if (deflater != null) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        out.write(output, 0, deflater.deflate(output));
+                    }
+                    compressedSize = deflater.getBytesWritten();
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+            long crc = crc32.getValue();
+            if (previousEntry != null && previousEntry.size == size && previousEntry.crc == crc) {
+                ResourceWriter.deleteQuietly(spill);
+                return new PackedEntry(name, dosTime, previousEntry);
+            }
+            if (compressedSize >= 0 && compressedSize < size) {
+                return new PackedEntry(name, ZipCentralDirectory.METHOD_DEFLATED, dosTime, crc, size, spill, compressedSize);
+            }
+            crc32.reset();
+            size = 0;
+            try (InputStream in = Files.newInputStream(file);
+                 OutputStream out = Files.newOutputStream(spill)) {
+                byte[] input = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(input)) >= 0) {
+                    crc32.update(input, 0, read);
+                    size += read;
+                    out.write(input, 0, read);
+                }
+            }
+            return new PackedEntry(name, ZipCentralDirectory.METHOD_STORED, dosTime, crc32.getValue(), size, spill, size);
+        } catch (IOException | RuntimeException e) {
+            ResourceWriter.deleteQuietly(spill);
+            throw e;
+        }
+    }
+
+    /**
+     * @return deflated content or null if it's not smaller than content
+     */
+    private static byte[] deflate(byte[] content, int level) {
+        if (level == Deflater.NO_COMPRESSION || content.length == 0) {
+            return null;
+        }
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, content.length)];
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+                if (length >= content.length) {
+                    return null;
+                }
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static final class PackedEntry {
+
+        private final String name;
+        private final int method;
+        private final int dosTime;
+        private final long crc;
+        private final long size;
+        private final ByteBuffer data;
+        private final Path spill;
+        private final long compressedSize;
+        private final ZipCentralDirectory.Entry reused;
+
+        private PackedEntry(String name, int method, int dosTime, long crc, long size, ByteBuffer data) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.spill = null;
+            this.compressedSize = data.remaining();
+            this.reused = null;
+        }
+
+        private PackedEntry(String name, int method, int dosTime, long crc, long size, Path spill, long compressedSize) {
+            this.name = name;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.size = size;
+            this.data = null;
+            this.spill = spill;
+            this.compressedSize = compressedSize;
+            this.reused = null;
+        }
+
+        private PackedEntry(String name, int dosTime, ZipCentralDirectory.Entry reused) {
+            this.name = name;
+            this.method = reused.method;
+            this.dosTime = dosTime;
+            this.crc = reused.crc;
+            this.size = reused.size;
+            this.data = null;
+            this.spill = null;
+            this.compressedSize = reused.compressedSize;
+            this.reused = reused;
+        }
+    }
+}
@@ -16,37 +16,334 @@
 
 package org.cuberact.storage.deferred;
 
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 /**
+ * Runs deferred tasks on worker threads. Tasks are sharded by group (e.g. storage), tasks of one group run in order
+ * on one thread while different groups run in parallel. Tasks without group are sharded by key.
+ * <p>
+ * Waiting tasks are indexed by key and by group, so the check whether a resource (or storage) has waiting task
+ * costs one hash lookup regardless of count of waiting tasks.
+ * <p>
+ * When a task is due, other waiting tasks of the same group and class which would be due within the batch window
+ * are claimed too and run together (see {@link DeferredTask#runTogether(List)}), at most max batch size tasks at once.
+ * <p>
+ * Waiting tasks of all executors are run in shutdown hook. Executor which is no longer referenced (and has no waiting
+ * tasks) doesn't need {@link #shutdown()}, its worker threads are stopped when it's garbage collected.
+ *
  * @author Michal Nikodim (michal.nikodim@gmail.com)
  */
 public class DeferredExecutor {
 
-    private static final DeferredThreadPoolExecutor DEFERRED_EXECUTOR = new DeferredThreadPoolExecutor();
+    public static int DEFAULT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static long DEFAULT_BATCH_WINDOW_IN_MILLISECONDS = 1000;
+
+    private static final Set<DeferredExecutor> EXECUTORS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>())); //waiting tasks reference their executor
+    private static final Cleaner CLEANER = Cleaner.create(r -> {
+        Thread thread = new Thread(r, "DeferredExecutorCleanerThread");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static volatile DeferredExecutor defaultExecutor;
 
     static {
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> DEFERRED_EXECUTOR.shutdownNow().forEach(Runnable::run), "DEFERRED_EXECUTOR - shutdown"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            List<DeferredExecutor> executors;
+            synchronized (EXECUTORS) {
+                executors = new ArrayList<>(EXECUTORS);
+            }
+            executors.forEach(DeferredExecutor::shutdown);
+        }, "DEFERRED_EXECUTOR - shutdown"));
+    }
+
+    private final DeferredThreadPoolExecutor[] shards;
+    private final Map<Object, DeferredTask> waitingByKey = new ConcurrentHashMap<>();
+    private final Map<Object, Map<Object, DeferredTask>> waitingByGroup = new ConcurrentHashMap<>();
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long batchWindowInMilliseconds = DEFAULT_BATCH_WINDOW_IN_MILLISECONDS;
+
+    public DeferredExecutor(int threads) {
+        this(threads, new DeferredThreadFactory());
+    }
+
+    public DeferredExecutor(int threads, ThreadFactory threadFactory) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be positive, was " + threads);
+        }
+        this.shards = new DeferredThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new DeferredThreadPoolExecutor(threadFactory);
+        }
+        EXECUTORS.add(this);
+        DeferredThreadPoolExecutor[] unreferenced = shards;
+        CLEANER.register(this, () -> {
+            for (DeferredThreadPoolExecutor shard : unreferenced) {
+                shard.shutdownNow();
+            }
+        });
+    }
+
+    /**
+     * Shared executor (with {@link #DEFAULT_THREADS} threads) used by storages without own executor
+     */
+    public static DeferredExecutor getDefault() {
+        DeferredExecutor executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (DeferredExecutor.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    executor = new DeferredExecutor(DEFAULT_THREADS);
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
     }
 
+    /**
+     * Max count of tasks run together, 1 disables batching
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Max batch size must be positive, was " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public long getBatchWindowInMilliseconds() {
+        return batchWindowInMilliseconds;
+    }
+
+    /**
+     * Waiting task is run together with due task if it would be due within this window (max added latency
+     * is the task delay, tasks are run earlier, never later)
+     */
+    public void setBatchWindowInMilliseconds(long batchWindowInMilliseconds) {
+        this.batchWindowInMilliseconds = batchWindowInMilliseconds;
+    }
+
+    /**
+     * Schedules task on {@link #getDefault()} executor
+     */
     public static void runDeferred(DeferredTask task) {
-        DEFERRED_EXECUTOR.schedule(task, task.getDelayInMilliSeconds(), TimeUnit.MILLISECONDS);
+        getDefault().schedule(task);
     }
 
+    /**
+     * Runs matching waiting tasks of {@link #getDefault()} executor, see {@link #runMatchingImmediately(Predicate)}
+     */
     public static void runImmediately(Predicate<DeferredTask> matched) {
-        List<DeferredTask> selected = DEFERRED_EXECUTOR.getQueue().stream()
-                .map(runnable -> (DeferredTask) runnable)
+        getDefault().runMatchingImmediately(matched);
+    }
+
+    /**
+     * Schedules task, waiting task with equal key is replaced (cancelled and absorbed by the new task atomically)
+     */
+    public void schedule(DeferredTask task) {
+        waitingByKey.compute(task.getKey(), (key, previous) -> {
+            if (previous != null) {
+                if (previous.cancel(false)) {
+                    task.replaced(previous);
+                    task.absorb(previous);
+                    removeFromGroup(previous);
+                } else if (!previous.isDone()) {
+                    task.setPredecessor(previous);
+                }
+            }
+            return task;
+        });
+        Object taskGroup = task.getGroup();
+        if (taskGroup != null) {
+            waitingByGroup.compute(taskGroup, (group, tasks) -> {
+                Map<Object, DeferredTask> groupTasks = tasks != null ? tasks : new ConcurrentHashMap<>();
+                groupTasks.put(task.getKey(), task);
+                return groupTasks;
+            });
+        }
+        task.setDelegate(shardOf(taskGroup != null ? taskGroup : task.getKey()).schedule(() -> runClaimed(task), task.getScheduleDelayInMilliSeconds(), TimeUnit.MILLISECONDS));
+    }
+
+    public boolean isWaiting(Object key) {
+        return !waitingByKey.isEmpty() && waitingByKey.containsKey(key);
+    }
+
+    /**
+     * Runs waiting task with given key in current thread, or waits until the task is done if it is already running.
+     */
+    public void runImmediately(Object key) {
+        if (waitingByKey.isEmpty()) {
+            return;
+        }
+        DeferredTask task = waitingByKey.get(key);
+        if (task != null) {
+            runNow(task);
+        }
+    }
+
+    /**
+     * Runs all waiting tasks of group in current thread (tasks of the same class together, in batches)
+     */
+    public void runGroupImmediately(Object group) {
+        if (group == null || waitingByGroup.isEmpty()) {
+            return;
+        }
+        Map<Object, DeferredTask> tasks = waitingByGroup.get(group);
+        if (tasks == null) {
+            return;
+        }
+        Map<Class<?>, List<DeferredTask>> claimedByClass = new LinkedHashMap<>();
+        List<DeferredTask> running = new ArrayList<>();
+        for (DeferredTask task : new ArrayList<>(tasks.values())) {
+            if (task.claim()) {
+                task.cancelScheduled();
+                claimedByClass.computeIfAbsent(task.getClass(), c -> new ArrayList<>()).add(task);
+            } else {
+                running.add(task);
+            }
+        }
+        int batchSize = maxBatchSize;
+        for (List<DeferredTask> claimed : claimedByClass.values()) {
+            for (int i = 0; i < claimed.size(); i += batchSize) {
+                run(claimed.subList(i, Math.min(claimed.size(), i + batchSize)));
+            }
+        }
+        running.forEach(this::runNow);
+    }
+
+    /**
+     * Scans all waiting tasks, prefer {@link #runImmediately(Object)} or {@link #runGroupImmediately(Object)}.
+     */
+    public void runMatchingImmediately(Predicate<DeferredTask> matched) {
+        new ArrayList<>(waitingByKey.values()).stream()
                 .filter(matched)
-                .collect(Collectors.toList());
-        selected.forEach(deferredTask -> {
-            boolean canceled = deferredTask.cancel(false);
-            if (canceled) {
-                DEFERRED_EXECUTOR.getQueue().remove(deferredTask);
-                deferredTask.run();
+                .forEach(this::runNow);
+    }
+
+    /**
+     * Stops worker threads and runs all waiting tasks in current thread. Executor can't be used after shutdown.
+     */
+    public void shutdown() {
+        for (DeferredThreadPoolExecutor shard : shards) {
+            shard.shutdownNow();
+        }
+        new ArrayList<>(waitingByGroup.keySet()).forEach(this::runGroupImmediately);
+        new ArrayList<>(waitingByKey.values()).forEach(this::runNow);
+        EXECUTORS.remove(this);
+    }
+
+    private DeferredThreadPoolExecutor shardOf(Object group) {
+        return shards[Math.floorMod(Objects.hashCode(group), shards.length)];
+    }
+
+    private void runNow(DeferredTask task) {
+        if (task.claim()) {
+            task.cancelScheduled();
+            try {
+                task.runClaimed();
+            } finally {
+                remove(task);
+            }
+        } else {
+            task.awaitFinished();
+            remove(task);
+        }
+    }
+
+    /**
+     * Runs due task on worker thread, failure is reported to uncaught exception handler of the thread
+     * (scheduled future would swallow it)
+     */
+    private void runClaimed(DeferredTask task) {
+        if (task.claim()) {
+            try {
+                run(claimBatch(task));
+            } catch (Throwable t) {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
             }
+        }
+    }
+
+    /**
+     * Claims waiting tasks of the same group and class which would be due within batch window
+     */
+    private List<DeferredTask> claimBatch(DeferredTask due) {
+        List<DeferredTask> batch = new ArrayList<>();
+        batch.add(due);
+        Object group = due.getGroup();
+        Map<Object, DeferredTask> tasks = group != null ? waitingByGroup.get(group) : null;
+        if (tasks == null) {
+            return batch;
+        }
+        int batchSize = maxBatchSize;
+        long batchWindow = batchWindowInMilliseconds;
+        for (DeferredTask task : tasks.values()) {
+            if (batch.size() >= batchSize) {
+                break;
+            }
+            if (task != due && task.getClass() == due.getClass()
+                    && task.getDelay(TimeUnit.MILLISECONDS) <= batchWindow && task.claim()) {
+                task.cancelScheduled();
+                batch.add(task);
+            }
+        }
+        return batch;
+    }
+
+    private void run(List<DeferredTask> batch) {
+        try {
+            DeferredTask.runClaimed(batch);
+        } finally {
+            batch.forEach(this::remove);
+        }
+    }
+
+    /**
+     * Tasks are compared by identity, equal task (for the same key) can be already waiting instead of this one
+     */
+    private void remove(DeferredTask task) {
+        waitingByKey.computeIfPresent(task.getKey(), (key, waiting) -> waiting == task ? null : waiting);
+        removeFromGroup(task);
+    }
+
+    private void removeFromGroup(DeferredTask task) {
+        Object taskGroup = task.getGroup();
+        if (taskGroup == null) {
+            return;
+        }
+        waitingByGroup.computeIfPresent(taskGroup, (group, tasks) -> {
+            tasks.computeIfPresent(task.getKey(), (key, waiting) -> waiting == task ? null : waiting);
+            return tasks.isEmpty() ? null : tasks;
         });
     }
+
+    private static final class DeferredThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "DeferredExecutorThread-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
@@ -16,11 +16,15 @@
 
 package org.cuberact.storage.deferred;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Michal Nikodim (michal.nikodim@gmail.com)
@@ -29,11 +33,31 @@ public abstract class DeferredTask implements RunnableScheduledFuture<Object> {
 
     public static long DEFERRED_DELAY_IN_MILLISECONDS = 3000;
 
+    private static final int WAITING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
     private final long delayInMilliSeconds;
-    private RunnableScheduledFuture<?> delegate;
+    private final long maxWaitInMilliSeconds;
+    private long firstDeferredNanos = System.nanoTime();
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile ScheduledFuture<?> delegate;
+    private volatile Thread runner;
+    private volatile DeferredTask predecessor;
 
     protected DeferredTask(long delayInMilliSeconds) {
+        this(delayInMilliSeconds, -1);
+    }
+
+    /**
+     * @param maxWaitInMilliSeconds task replacing waiting tasks with equal key runs at latest max wait after the first
+     *                              of them was deferred, negative means unlimited
+     */
+    protected DeferredTask(long delayInMilliSeconds, long maxWaitInMilliSeconds) {
         this.delayInMilliSeconds = delayInMilliSeconds;
+        this.maxWaitInMilliSeconds = maxWaitInMilliSeconds;
     }
 
     @Override
@@ -45,51 +69,230 @@ public abstract class DeferredTask implements RunnableScheduledFuture<Object> {
     @Override
     public abstract boolean equals(Object o);
 
+    /**
+     * Waiting task is replaced by newer task with equal key (e.g. resource). Default key is the task itself,
+     * so equal tasks replace each other.
+     */
+    public Object getKey() {
+        return this;
+    }
+
+    /**
+     * Tasks of the same group (e.g. storage) can be run immediately together, null (default) means no group
+     */
+    public Object getGroup() {
+        return null;
+    }
+
+    /**
+     * Runs this task together with other due tasks of the same group and class (e.g. all due writes of one zip
+     * storage in one archive rewrite). Failure of one task must not prevent the others, all tasks are done afterwards.
+     * Default implementation runs the tasks one by one and throws their failures after all tasks ran.
+     */
+    protected void runTogether(List<? extends DeferredTask> tasks) {
+        RuntimeException failure = null;
+        for (DeferredTask task : tasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the first failure, later failures are added to it as suppressed
+     */
+    protected static RuntimeException addFailure(RuntimeException failure, RuntimeException e) {
+        if (failure == null) {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    /**
+     * This task replaced waiting task with equal key, the replaced task is cancelled and will never run.
+     * Task which accumulates work (e.g. appends) takes over the work of the replaced task here. Called while
+     * the executor atomically updates waiting tasks, so it must not block or run user code.
+     */
+    protected void absorb(DeferredTask replaced) {
+    }
+
+    /**
+     * Task is run without delay (e.g. accumulated content reached size limit)
+     */
+    protected boolean isDue() {
+        return false;
+    }
+
     public final long getDelayInMilliSeconds() {
         return delayInMilliSeconds;
     }
 
-    final void setDelegate(RunnableScheduledFuture<?> delegate) {
+    public final long getMaxWaitInMilliSeconds() {
+        return maxWaitInMilliSeconds;
+    }
+
+    /**
+     * This task replaced waiting (cancelled) task, max wait counts from the time the replaced task was deferred
+     */
+    final void replaced(DeferredTask previous) {
+        firstDeferredNanos = previous.firstDeferredNanos;
+    }
+
+    /**
+     * Delay shortened by max wait, zero for due task
+     */
+    final long getScheduleDelayInMilliSeconds() {
+        if (isDue()) {
+            return 0;
+        }
+        if (maxWaitInMilliSeconds < 0) {
+            return delayInMilliSeconds;
+        }
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstDeferredNanos);
+        return Math.max(0, Math.min(delayInMilliSeconds, maxWaitInMilliSeconds - waited));
+    }
+
+    final void setDelegate(ScheduledFuture<?> delegate) {
         this.delegate = delegate;
     }
 
+    final void cancelScheduled() {
+        ScheduledFuture<?> scheduled = delegate;
+        if (scheduled != null) {
+            scheduled.cancel(false);
+        }
+    }
+
+    /**
+     * Replaced task which was already running, this task waits for it
+     */
+    final void setPredecessor(DeferredTask predecessor) {
+        this.predecessor = predecessor;
+    }
+
+    /**
+     * Only one thread wins the task (executor thread or thread which needs the task done immediately)
+     */
+    final boolean claim() {
+        if (state.compareAndSet(WAITING, RUNNING)) {
+            runner = Thread.currentThread();
+            return true;
+        }
+        return false;
+    }
+
+    final void runClaimed() {
+        try {
+            awaitPredecessor();
+            run();
+        } finally {
+            markDone();
+        }
+    }
+
+    /**
+     * Runs claimed tasks of the same group and class together
+     */
+    static void runClaimed(List<DeferredTask> tasks) {
+        if (tasks.size() == 1) {
+            tasks.get(0).runClaimed();
+            return;
+        }
+        try {
+            tasks.forEach(DeferredTask::awaitPredecessor);
+            tasks.get(0).runTogether(tasks);
+        } finally {
+            tasks.forEach(DeferredTask::markDone);
+        }
+    }
+
+    private void awaitPredecessor() {
+        DeferredTask running = predecessor;
+        if (running != null) {
+            running.awaitFinished();
+            predecessor = null;
+        }
+    }
+
+    private void markDone() {
+        state.set(DONE);
+        finished.countDown();
+    }
+
+    /**
+     * Waits until the task is done (or cancelled), returns immediately when called from the task itself
+     */
+    final void awaitFinished() {
+        if (runner == Thread.currentThread()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     @Override
     public final boolean isPeriodic() {
-        return delegate.isPeriodic();
+        return false;
     }
 
     @Override
     public final long getDelay(TimeUnit unit) {
-        return delegate.getDelay(unit);
+        ScheduledFuture<?> scheduled = delegate;
+        return scheduled != null ? scheduled.getDelay(unit) : unit.convert(delayInMilliSeconds, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public final int compareTo(Delayed o) {
-        return delegate.compareTo(o);
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
     }
 
     @Override
     public final boolean cancel(boolean mayInterruptIfRunning) {
-        return delegate.cancel(mayInterruptIfRunning);
+        if (state.compareAndSet(WAITING, CANCELLED)) {
+            finished.countDown();
+            cancelScheduled();
+            return true;
+        }
+        return false;
     }
 
     @Override
     public final boolean isCancelled() {
-        return delegate.isCancelled();
+        return state.get() == CANCELLED;
     }
 
     @Override
     public final boolean isDone() {
-        return delegate.isDone();
+        return state.get() >= DONE;
     }
 
     @Override
     public final Object get() throws InterruptedException, ExecutionException {
-        return delegate.get();
+        finished.await();
+        return null;
     }
 
     @Override
     public final Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-        return delegate.get(timeout, unit);
+        if (!finished.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return null;
     }
 }
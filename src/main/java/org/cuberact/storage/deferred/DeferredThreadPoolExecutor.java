@@ -16,35 +16,16 @@
 
 package org.cuberact.storage.deferred;
 
-import java.util.concurrent.RunnableScheduledFuture;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * @author Michal Nikodim (michal.nikodim@gmail.com)
  */
 final class DeferredThreadPoolExecutor extends ScheduledThreadPoolExecutor {
 
-    DeferredThreadPoolExecutor() {
-        super(1, r -> {
-            Thread thread = new Thread(r, "DeferredExecutorThread");
-            thread.setDaemon(true);
-            return thread;
-        });
+    DeferredThreadPoolExecutor(ThreadFactory threadFactory) {
+        super(1, threadFactory);
         setRemoveOnCancelPolicy(true);
     }
-
-    @Override
-    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
-        remove(command);
-        return super.schedule(command, delay, unit);
-    }
-
-    @Override
-    @SuppressWarnings("unchecked")
-    protected <V> RunnableScheduledFuture<V> decorateTask(Runnable runnable, RunnableScheduledFuture<V> task) {
-        ((DeferredTask) runnable).setDelegate(task);
-        return (RunnableScheduledFuture<V>) runnable;
-    }
 }
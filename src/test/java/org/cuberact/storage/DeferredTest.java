@@ -1,7 +1,15 @@
 package org.cuberact.storage;
 
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
 import org.cuberact.storage.deferred.*;
 import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
 
 /**
  * @author Michal Nikodim (michal.nikodim@gmail.com)
@@ -10,15 +18,406 @@ public class DeferredTest {
 
     @Test
     public void runOnlyOnce() throws InterruptedException {
-        DeferredTask.DEFERRED_DELAY_IN_MILLISECONDS = 100;
-        byte[] fakeContent = new byte[0];
-     //   Resource fakeResource = Mockito.mock(Resource.class);
+        AtomicInteger counter = new AtomicInteger();
         for (int i = 0; i < 20; i++) {
             Thread.sleep(50);
-     //       DeferredExecutor.runDeferred(new Resource.WriteTask(fakeResource, () -> fakeContent));
+            DeferredExecutor.runDeferred(new CountingTask("runOnlyOnce", counter, 100));
+        }
+        assertEquals(0, counter.get());
+        Thread.sleep(300); //wait for deferred execution
+        assertEquals(1, counter.get());
+    }
+
+    @Test
+    public void runImmediately() {
+        AtomicInteger counter = new AtomicInteger();
+        DeferredExecutor.getDefault().schedule(new CountingTask("runImmediately", counter, 10000));
+        DeferredExecutor.getDefault().runImmediately("unknown");
+        assertEquals(0, counter.get());
+        DeferredExecutor.getDefault().runImmediately("runImmediately");
+        assertEquals(1, counter.get());
+        DeferredExecutor.getDefault().runImmediately("runImmediately");
+        assertEquals(1, counter.get());
+        DeferredExecutor.runDeferred(new CountingTask("runImmediately_matched", counter, 10000));
+        DeferredExecutor.runImmediately(task -> "runImmediately_matched".equals(task.getKey()));
+        assertEquals(2, counter.get());
+    }
+
+    @Test
+    public void taskWithoutKeyAndGroup() {
+        AtomicInteger counter = new AtomicInteger();
+        DeferredExecutor.runDeferred(new PlainTask("plain", counter));
+        DeferredExecutor.runDeferred(new PlainTask("plain", counter)); //equal task replaces the waiting one
+        DeferredExecutor.getDefault().runImmediately(new PlainTask("plain", counter));
+        assertEquals(1, counter.get());
+    }
+
+    @Test
+    public void ownExecutor() {
+        DeferredExecutor executor = new DeferredExecutor(2);
+        Storage storage = new Storage("junit_test_dir7");
+        try {
+            storage.setDeferredExecutor(executor);
+            Resource resource = storage.getResource("deferred.txt");
+            for (int i = 0; i < 100; i++) {
+                resource.writeDeferred("content_" + i);
+            }
+            assertEquals("content_99", resource.readToString());
+        } finally {
+            storage.delete();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void writeDeferred_MaxWait() throws InterruptedException {
+        Storage storage = new Storage("junit_test_dir8");
+        try {
+            Resource resource = storage.getResource("deferred.txt");
+            DeferPolicy policy = DeferPolicy.debounce(200).withMaxWait(300);
+            for (int i = 0; i < 20; i++) {
+                resource.writeDeferred("content_" + i, policy);
+                Thread.sleep(50);
+            }
+            assertTrue(Files.exists(Paths.get("junit_test_dir8/deferred.txt"))); //written by max wait, not by debounce
+            assertEquals("content_19", resource.readToString());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void writeDeferred_InSessionWithFlush_Zip() throws Exception {
+        Storage storage = new Storage("junit_test31.zip");
+        try {
+            storage.setZipIdleTimeoutInMilliseconds(60000);
+            storage.setWriteOptions(WriteOptions.durability(Durability.FLUSH));
+            assertEquals("deferred", readInSessionAfterDeferredWrite(storage));
+            assertEquals("deferred", readOnDisk(storage.getPath(), "deferred.txt")); //written when session was closed
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void appendDeferred() {
+        Storage storage = new Storage("junit_test_dir9");
+        try {
+            Resource resource = storage.getResource("log.txt");
+            StringBuilder expected = new StringBuilder("start;");
+            resource.writeDeferred("start;");
+            for (int i = 0; i < 1000; i++) {
+                resource.appendDeferred(i + ";");
+                expected.append(i).append(';');
+            }
+            assertEquals(expected.toString(), resource.readToString());
+            resource.appendDeferred("end;");
+            assertEquals(expected + "end;", resource.readToString());
+            resource.appendDeferred("lost;");
+            resource.writeDeferred("replaced");
+            assertEquals("replaced", resource.readToString());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void appendDeferred_AfterWriteOfProvidedContent() {
+        Storage storage = new Storage("junit_test_dir34");
+        try {
+            Resource resource = storage.getResource("log.txt");
+            AtomicInteger provided = new AtomicInteger();
+            resource.writeDeferred(() -> {
+                provided.incrementAndGet();
+                return "start;".getBytes();
+            }, DeferPolicy.debounce(60000));
+            resource.appendDeferred("a;", DeferPolicy.debounce(60000));
+            resource.appendDeferred("b;", DeferPolicy.debounce(60000));
+            assertEquals(0, provided.get()); //not provided while appends are scheduled
+            assertEquals("start;a;b;", resource.readToString());
+            assertEquals(1, provided.get());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void journal_Replay() {
+        Storage storage = new Storage("junit_test_dir10");
+        try {
+            StorageJournal journal = StorageJournal.open(StorageJournal.journalPath(storage.getPath()), 0);
+            journal.log("lost.txt", "lost content".getBytes(StandardCharsets.UTF_8), false, true, () -> 0);
+            journal.log("log.txt", "a;".getBytes(StandardCharsets.UTF_8), true, true, () -> 0);
+            journal.log("log.txt", "b;".getBytes(StandardCharsets.UTF_8), true, true, () -> 0);
+            journal.close(); //killed process, writes were not done
+            storage.setJournaled(true);
+            assertEquals("lost content", storage.getResource("lost.txt").readToString());
+            assertEquals("a;b;", storage.getResource("log.txt").readToString());
+            storage.getResource("lost.txt").writeDeferred("new content");
+            storage.getResource("log.txt").appendDeferred("c;");
+            storage.setJournaled(false);
+            assertEquals("new content", storage.getResource("lost.txt").readToString());
+            assertEquals("a;b;c;", storage.getResource("log.txt").readToString());
+            assertFalse(Files.exists(StorageJournal.journalPath(storage.getPath())));
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void journal_Replay_Zip() throws IOException {
+        Storage storage = new Storage("junit_test25.zip");
+        Path journalPath = StorageJournal.journalPath(storage.getPath());
+        try {
+            StorageJournal journal = StorageJournal.open(journalPath, 0);
+            journal.log("lost.txt", "lost content".getBytes(StandardCharsets.UTF_8), false, true, () -> 0);
+            journal.close(); //killed process, write was not done
+            storage.setJournaled(true);
+            assertEquals("lost content", readOnDisk(storage.getPath(), "lost.txt"));
+            assertEquals(0, Files.size(journalPath));
+            Resource resource = storage.getResource("lost.txt");
+            resource.writeDeferred("new content");
+            assertTrue(Files.size(journalPath) > 0);
+            resource.ifWriteWaitingThenRunImmediately();
+            assertEquals(0, Files.size(journalPath)); //committed only when archive on disk contains the write
+            assertEquals("new content", readOnDisk(storage.getPath(), "lost.txt"));
+            try (StorageSession ignored = storage.openSession()) {
+                resource.writeDeferred("session content");
+                resource.ifWriteWaitingThenRunImmediately();
+                assertTrue(Files.size(journalPath) > 0); //archive is written when session is closed
+            }
+            assertEquals(0, Files.size(journalPath));
+            assertEquals("session content", readOnDisk(storage.getPath(), "lost.txt"));
+            storage.setJournaled(false);
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void journal_DeferredWriteInSession_Zip() throws Exception {
+        Storage storage = new Storage("junit_test30.zip");
+        try {
+            storage.setZipIdleTimeoutInMilliseconds(60000);
+            storage.setJournaled(true);
+            assertEquals("deferred", readInSessionAfterDeferredWrite(storage));
+            assertEquals(0, Files.size(StorageJournal.journalPath(storage.getPath()))); //committed when session was closed
+            assertEquals("deferred", readOnDisk(storage.getPath(), "deferred.txt"));
+            storage.setJournaled(false);
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void journal_ReplayWrittenAppend() {
+        Storage storage = new Storage("junit_test_dir17");
+        try {
+            storage.getResource("log.txt").write("start;", false);
+            StorageJournal journal = StorageJournal.open(StorageJournal.journalPath(storage.getPath()), 0);
+            journal.log("log.txt", "a;".getBytes(StandardCharsets.UTF_8), true, true, () -> storage.getResource("log.txt").writtenSize());
+            journal.log("log.txt", "b;".getBytes(StandardCharsets.UTF_8), true, true, () -> 0);
+            journal.log("log.txt", "c;".getBytes(StandardCharsets.UTF_8), true, true, () -> 0);
+            storage.getResource("log.txt").write("a;b", true); //killed process during append, commit was not logged
+            journal.close();
+            storage.setJournaled(true);
+            assertEquals("start;a;b;c;", storage.getResource("log.txt").readToString());
+            storage.setJournaled(false);
+            storage.setJournaled(true); //nothing to replay
+            assertEquals("start;a;b;c;", storage.getResource("log.txt").readToString());
+            storage.setJournaled(false);
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void journal_AppendAfterDirectWrite() {
+        Storage storage = new Storage("junit_test_dir29");
+        try {
+            storage.setJournaled(true);
+            storage.getResource("other.txt").writeDeferred("other", DeferPolicy.debounce(60000)); //keeps journal not empty
+            Resource log = storage.getResource("log.txt");
+            log.appendDeferred("a;", DeferPolicy.debounce(60000));
+            log.write("direct;", true); //waiting append is written first
+            log.appendDeferred("b;", DeferPolicy.debounce(60000));
+            StorageJournal journal = StorageJournal.open(StorageJournal.journalPath(storage.getPath()), 0);
+            try {
+                StorageJournal.Record append = journal.getUncommittedOnOpen().stream().filter(StorageJournal.Record::isAppend).findFirst().orElseThrow();
+                assertEquals("b;", new String(append.content, StandardCharsets.UTF_8));
+                assertEquals(9, append.offset); //replay must not take it as already written
+            } finally {
+                journal.close();
+            }
+            storage.setJournaled(false);
+            assertEquals("a;direct;b;", log.readToString());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void journal_CompactedWhilePending() throws IOException {
+        Path journalPath = StorageJournal.journalPath(Paths.get("junit_test_dir30"));
+        StorageJournal journal = StorageJournal.open(journalPath, 100);
+        try {
+            byte[] content = new byte[1024];
+            long pending = journal.log("pending.txt", "pending".getBytes(StandardCharsets.UTF_8), false, false, () -> 0);
+            for (int i = 0; i < 4096; i++) {
+                journal.commit(new long[]{journal.log("done.txt", content, false, false, () -> 0)});
+                assertTrue(Files.size(journalPath) < 3 * 1024 * 1024, "journal is compacted");
+            }
+            journal.close();
+            journal = StorageJournal.open(journalPath, 100);
+            assertEquals(1, journal.getUncommittedOnOpen().size());
+            assertEquals(pending, journal.getUncommittedOnOpen().get(0).sequence);
+            assertEquals("pending", new String(journal.getUncommittedOnOpen().get(0).content, StandardCharsets.UTF_8));
+        } finally {
+            journal.close();
+            Files.deleteIfExists(journalPath);
+        }
+    }
+
+    @Test
+    public void runTogether() {
+        AtomicInteger counter = new AtomicInteger();
+        AtomicInteger batches = new AtomicInteger();
+        DeferredExecutor executor = new DeferredExecutor(1);
+        try {
+            for (int i = 0; i < 10; i++) {
+                executor.schedule(new CountingTask("runTogether_" + i, counter, batches, 10000));
+            }
+            executor.runGroupImmediately(DeferredTest.class);
+            assertEquals(10, counter.get());
+            assertEquals(1, batches.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void runTogether_FailedWriteDoesNotDropOthers() {
+        Storage storage = new Storage("junit_test_dir28");
+        try {
+            storage.getResource("blocked/inside.txt").write("inside", false);
+            storage.getResource("first.txt").writeDeferred("first", DeferPolicy.debounce(10000));
+            storage.getResource("failed.txt").writeDeferred(() -> {
+                throw new IllegalStateException("no content");
+            }, DeferPolicy.debounce(10000));
+            storage.getResource("blocked").writeDeferred("directory can't be written", DeferPolicy.debounce(10000));
+            storage.getResource("second.txt").writeDeferred("second", DeferPolicy.debounce(10000));
+            RuntimeException failure = assertThrows(RuntimeException.class, () -> storage.getDeferredExecutor().runGroupImmediately(storage));
+            assertEquals(1, failure.getSuppressed().length);
+            assertEquals("first", storage.getResource("first.txt").readToString());
+            assertEquals("second", storage.getResource("second.txt").readToString());
+            assertFalse(storage.getResource("failed.txt").exists());
+            assertFalse(storage.getDeferredExecutor().isWaiting(storage.getResource("first.txt")));
+        } finally {
+            storage.delete();
+        }
+    }
+
+    /**
+     * Deferred write runs on worker thread while other thread holds the archive by open session and then reads
+     * the resource, worker must not wait for the session (it would wait for the worker)
+     */
+    private static String readInSessionAfterDeferredWrite(Storage storage) throws Exception {
+        CompletableFuture<String> read = CompletableFuture.supplyAsync(() -> {
+            try (StorageSession ignored = storage.openSession()) {
+                Resource resource = storage.getResource("deferred.txt");
+                resource.writeDeferred("deferred", DeferPolicy.debounce(0));
+                Thread.sleep(200);
+                return resource.readToString();
+            } catch (InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        });
+        return read.get(10, TimeUnit.SECONDS);
+    }
+
+    private static String readOnDisk(Path archive, String entryName) throws IOException {
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            ZipEntry entry = zip.getEntry(entryName);
+            assertNotNull(entry);
+            try (InputStream in = zip.getInputStream(entry)) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static class PlainTask extends DeferredTask {
+
+        private final String name;
+        private final AtomicInteger counter;
+
+        private PlainTask(String name, AtomicInteger counter) {
+            super(10000);
+            this.name = name;
+            this.counter = counter;
+        }
+
+        @Override
+        public void run() {
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof PlainTask && name.equals(((PlainTask) o).name);
+        }
+    }
+
+    private static class CountingTask extends DeferredTask {
+
+        private final String key;
+        private final AtomicInteger counter;
+        private final AtomicInteger batches;
+
+        private CountingTask(String key, AtomicInteger counter, long delayInMilliSeconds) {
+            this(key, counter, new AtomicInteger(), delayInMilliSeconds);
+        }
+
+        private CountingTask(String key, AtomicInteger counter, AtomicInteger batches, long delayInMilliSeconds) {
+            super(delayInMilliSeconds);
+            this.key = key;
+            this.counter = counter;
+            this.batches = batches;
+        }
+
+        @Override
+        public void run() {
+            counter.incrementAndGet();
+        }
+
+        @Override
+        protected void runTogether(List<? extends DeferredTask> tasks) {
+            batches.incrementAndGet();
+            super.runTogether(tasks);
+        }
+
+        @Override
+        public Object getKey() {
+            return key;
+        }
+
+        @Override
+        public Object getGroup() {
+            return DeferredTest.class;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof CountingTask && key.equals(((CountingTask) o).key);
         }
-    //    Mockito.verify(fakeResource, Mockito.times(0)).writeInternal(fakeContent, false);
-        Thread.sleep(110); //wait for deferred execution
-    //    Mockito.verify(fakeResource, Mockito.times(1)).writeInternal(fakeContent, false);
     }
 }
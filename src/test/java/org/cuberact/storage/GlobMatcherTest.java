@@ -0,0 +1,31 @@
+package org.cuberact.storage;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Michal Nikodim (michal.nikodim@gmail.com)
+ */
+public class GlobMatcherTest {
+
+    @Test
+    public void matches() {
+        assertTrue(new GlobMatcher("john.txt").matches("JOHN.txt"));
+        assertTrue(new GlobMatcher("*.png").matches("a.png"));
+        assertFalse(new GlobMatcher("*.png").matches("dir/a.png"));
+        assertTrue(new GlobMatcher("**.png").matches("dir/a.png"));
+        assertTrue(new GlobMatcher("assets/**").matches("assets/dir/a.png"));
+        assertTrue(new GlobMatcher("{first,second}/b*.txt").matches("second/bob.txt"));
+    }
+
+    @Test
+    public void mayMatchInside() {
+        GlobMatcher globMatcher = new GlobMatcher("assets/*/textures/**.png");
+        assertTrue(globMatcher.mayMatchInside("assets"));
+        assertTrue(globMatcher.mayMatchInside("assets/level1"));
+        assertTrue(globMatcher.mayMatchInside("assets/level1/textures/deep"));
+        assertFalse(globMatcher.mayMatchInside("sounds"));
+        assertFalse(globMatcher.mayMatchInside("assets/level1/sounds"));
+        assertFalse(new GlobMatcher("*.png").mayMatchInside("assets"));
+    }
+}
@@ -1,5 +1,12 @@
 package org.cuberact.storage;
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 import org.junit.jupiter.api.*;
 
 /**
@@ -15,4 +22,240 @@ public class ResourceTest {
         Assertions.assertEquals("file", resource.getName());
         Assertions.assertEquals("txt", resource.getExtension());
     }
+
+    @Test
+    public void attributes_Zip() {
+        Storage storage = new Storage("junit_test5.zip");
+        try {
+            Resource resource = storage.getResource("dir/file.txt");
+            Assertions.assertFalse(resource.attributes().exists());
+            resource.write("content", false);
+            ResourceAttributes attributes = resource.attributes();
+            Assertions.assertTrue(attributes.exists());
+            Assertions.assertFalse(attributes.isDirectory());
+            Assertions.assertEquals(7, attributes.getSize());
+            Assertions.assertTrue(storage.getResource("dir").attributes().isDirectory());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void mapReadOnly_ReadToByteBuffer() throws IOException {
+        Storage directory = new Storage("junit_test_dir18");
+        Storage stored = new Storage("junit_test18.zip");
+        Storage deflated = new Storage("junit_test19.zip");
+        try {
+            String content = String.join("", Collections.nCopies(1000, "content;"));
+            directory.getResource("dir/file.txt").write(content, false);
+            directory.packTo(stored, "**", PackOptions.defaults().level(0));
+            directory.packTo(deflated, "**", PackOptions.defaults());
+            Assertions.assertEquals(ZipCentralDirectory.METHOD_STORED, ZipCentralDirectory.read(stored.getPath()).getEntry("dir/file.txt").method);
+            Assertions.assertEquals(ZipCentralDirectory.METHOD_DEFLATED, ZipCentralDirectory.read(deflated.getPath()).getEntry("dir/file.txt").method);
+            for (Storage storage : new Storage[]{directory, stored, deflated}) {
+                Resource resource = storage.getResource("dir/file.txt");
+                ByteBuffer mapped = resource.mapReadOnly();
+                Assertions.assertTrue(mapped.isReadOnly());
+                Assertions.assertEquals(content, toString(mapped));
+                ByteBuffer buffer = resource.readToByteBuffer();
+                Assertions.assertTrue(buffer.isDirect());
+                Assertions.assertEquals(content, toString(buffer));
+            }
+            try (FileChannel channel = FileChannel.open(stored.getPath())) {
+                Assertions.assertTrue(stored.getCentralDirectory(channel) == stored.getCentralDirectory(channel)); //parsed once
+            }
+            directory.getResource("dir/file.txt").write("changed", false);
+            directory.packTo(stored, "**", PackOptions.defaults().level(0));
+            Assertions.assertEquals("changed", toString(stored.getResource("dir/file.txt").mapReadOnly()));
+        } finally {
+            directory.delete();
+            stored.delete();
+            deflated.delete();
+        }
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+    }
+
+    @Test
+    public void streamingWrite_Directory() throws Exception {
+        streamingWriteTest("junit_test_dir20");
+    }
+
+    @Test
+    public void streamingWrite_Zip() throws Exception {
+        streamingWriteTest("junit_test20.zip");
+    }
+
+    private void streamingWriteTest(String path) throws Exception {
+        Storage storage = new Storage(path);
+        try {
+            Resource resource = storage.getResource("dir/file.txt");
+            OutputStream outputStream = resource.openOutputStream(false);
+            outputStream.write("stream;".getBytes(StandardCharsets.UTF_8));
+            outputStream.close();
+            outputStream.close(); //second close is ignored
+            Assertions.assertEquals("stream;", resource.readToString());
+
+            SeekableByteChannel channel = resource.openWritableChannel(true);
+            channel.write(ByteBuffer.wrap("channel;".getBytes(StandardCharsets.UTF_8)));
+            channel.close();
+            channel.close();
+            Assertions.assertEquals("stream;channel;", resource.readToString());
+
+            resource.write(Channels.newChannel(new ByteArrayInputStream("readable;".getBytes(StandardCharsets.UTF_8))), true);
+            Assertions.assertEquals("stream;channel;readable;", resource.readToString());
+
+            resource.write(Channels.newChannel(new ByteArrayInputStream("new".getBytes(StandardCharsets.UTF_8))), false);
+            Assertions.assertEquals("new", resource.readToString());
+            storage.getResource("other.txt").write("other", false); //leases were released
+            Assertions.assertEquals(2, storage.findResources("**.txt").size());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void streamingWrite_SerializedWithOtherWrites() throws Exception {
+        Storage storage = new Storage("junit_test_dir33");
+        try {
+            Resource resource = storage.getResource("file.txt");
+            OutputStream outputStream = resource.openOutputStream(false);
+            outputStream.write("stream".getBytes(StandardCharsets.UTF_8));
+            CompletableFuture<Void> write = CompletableFuture.runAsync(() -> resource.write("other", false));
+            Thread.sleep(200);
+            Assertions.assertFalse(write.isDone()); //waits until stream is closed
+            outputStream.close();
+            write.get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals("other", resource.readToString());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void streamingWrite_SyncedByWriteOptions_Zip() throws Exception {
+        Storage storage = new Storage("junit_test33.zip");
+        try {
+            storage.setZipIdleTimeoutInMilliseconds(60000);
+            storage.setWriteOptions(WriteOptions.durability(Durability.FLUSH));
+            try (SeekableByteChannel channel = storage.getResource("channel.txt").openWritableChannel(false)) {
+                channel.write(ByteBuffer.wrap("channel".getBytes(StandardCharsets.UTF_8)));
+            }
+            try (ZipFile zip = new ZipFile(storage.getPath().toFile())) {
+                Assertions.assertNotNull(zip.getEntry("channel.txt"));
+            }
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void write_AtomicDurable() {
+        Storage storage = new Storage("junit_test_dir11");
+        try {
+            Resource resource = storage.getResource("dir/file.txt");
+            WriteOptions options = WriteOptions.durability(Durability.FSYNC_FILE_AND_DIR).atomic();
+            resource.write("first", false, options);
+            resource.write("_second", true, options);
+            Assertions.assertEquals("first_second", resource.readToString());
+            Assertions.assertEquals(1, storage.findResources("dir/*").size()); //no temp file left
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void write_DurableWhileArchiveInUse() throws Exception {
+        Storage storage = new Storage("junit_test14.zip");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            storage.getResource("first.txt").write("first", false);
+            CountDownLatch opened = new CountDownLatch(1);
+            Future<?> reader = executor.submit(() -> {
+                StorageSession session = storage.openSession();
+                try {
+                    opened.countDown();
+                    Thread.sleep(300);
+                } finally {
+                    session.close();
+                }
+                return null;
+            });
+            opened.await();
+            storage.getResource("second.txt").write("second", false, WriteOptions.durability(Durability.FSYNC_FILE));
+            Assertions.assertNotNull(ZipCentralDirectory.read(storage.getPath()).getEntry("second.txt")); //on disk, not only in mount
+            reader.get();
+
+            StorageSession session = storage.openSession();
+            try {
+                Assertions.assertThrows(StorageException.class,
+                        () -> storage.getResource("third.txt").write("third", false, WriteOptions.durability(Durability.FSYNC_FILE)));
+            } finally {
+                session.close();
+            }
+        } finally {
+            executor.shutdown();
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void cache_Directory() {
+        cacheTest("junit_test_dir13");
+    }
+
+    @Test
+    public void cache_Zip() {
+        cacheTest("junit_test13.zip");
+    }
+
+    @Test
+    public void readWriteAsync_Directory() {
+        readWriteAsyncTest("junit_test_dir12");
+    }
+
+    @Test
+    public void readWriteAsync_Zip() {
+        readWriteAsyncTest("junit_test12.zip");
+    }
+
+    private void readWriteAsyncTest(String path) {
+        Storage storage = new Storage(path);
+        try {
+            Resource resource = storage.getResource("dir/file.txt");
+            resource.writeAsync("first", false).join();
+            resource.writeAsync("_second", true).join();
+            Assertions.assertEquals("first_second", new String(resource.readAsync().join(), storage.getCharset()));
+            Assertions.assertEquals(12, (long) resource.sizeAsync().join());
+            resource.writeDeferred("deferred");
+            Assertions.assertEquals("deferred", new String(resource.readAsync().join(), storage.getCharset()));
+            Assertions.assertEquals(1, storage.findResourcesAsync("dir/*").join().size());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    private void cacheTest(String path) {
+        Storage storage = new Storage(path);
+        try {
+            storage.setCacheSizeInBytes(100);
+            Resource resource = storage.getResource("dir/file.txt");
+            resource.write("first", false);
+            Assertions.assertEquals("first", resource.readToString());
+            Assertions.assertEquals("first", resource.readToString());
+            Assertions.assertEquals(1, storage.getCacheStats().getHits());
+            resource.write("second", false);
+            Assertions.assertEquals("second", resource.readToString());
+            resource.writeDeferred("deferred");
+            Assertions.assertEquals("deferred", resource.readToString());
+            storage.getResource("dir/big.txt").write(new byte[95], false);
+            storage.getResource("dir/big.txt").readToBytes();
+            Assertions.assertEquals(1, storage.getCacheStats().getEvictions());
+            Assertions.assertTrue(storage.getCacheStats().getSizeInBytes() <= 100);
+        } finally {
+            storage.delete();
+        }
+    }
 }
@@ -1,6 +1,14 @@
 package org.cuberact.storage;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+import java.util.zip.*;
 import org.junit.jupiter.api.*;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -29,8 +37,559 @@ public class StorageTest {
         findResourcesTest("junit_test2.zip");
     }
 
+    @Test
+    public void findResources_IndexedDirectory() {
+        findResourcesTest("junit_test_dir4", true);
+    }
+
+    @Test
+    public void findResources_IndexedZip() {
+        findResourcesTest("junit_test4.zip", true);
+    }
+
+    @Test
+    public void index_ExternalChangeInNestedDirectory() throws IOException {
+        Storage storage = new Storage("junit_test_dir26");
+        storage.setIndexed(true);
+        try {
+            storage.getResource("a/b/c/first.txt").write("first", false);
+            storage.getResource("other/file.txt").write("other", false);
+            assertEquals(2, storage.findResources("**.txt").size());
+            Path nested = storage.getPath().resolve("a/b/c");
+            Files.write(nested.resolve("second.txt"), "second".getBytes());
+            Files.createDirectories(nested.resolve("d"));
+            Files.write(nested.resolve("d/third.txt"), "third".getBytes());
+            assertTrue(storage.getResource("a/b/c/second.txt").exists());
+            assertEquals(6, storage.getResource("a/b/c/second.txt").size());
+            assertEquals(Arrays.asList("a/b/c/d/third.txt", "a/b/c/first.txt", "a/b/c/second.txt"),
+                    storage.findResources("a/**", FindOptions.sequential().sorted()).stream().map(Resource::getPath).collect(Collectors.toList()));
+            Files.delete(nested.resolve("first.txt"));
+            Files.delete(nested.resolve("d/third.txt"));
+            Files.delete(nested.resolve("d"));
+            assertFalse(storage.getResource("a/b/c/first.txt").exists());
+            assertEquals(Arrays.asList("a/b/c/second.txt", "other/file.txt"),
+                    storage.findResources("**.txt", FindOptions.sequential().sorted()).stream().map(Resource::getPath).collect(Collectors.toList()));
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void index_ZipKeptAfterOwnWrite() {
+        Storage storage = new Storage("junit_test26.zip");
+        storage.setIndexed(true);
+        try {
+            storage.getResource("first.txt").write("first", false);
+            assertEquals(1, storage.findResources("**").size());
+            StorageIndex index = storage.getIndex();
+            storage.getResource("second.txt").write("second", false);
+            ZipFileSystemPool.flushAndWait(storage.getPath());
+            assertTrue(index == storage.getIndex()); //archive rewritten with own changes only, index is not built again
+            assertEquals(2, storage.findResources("**").size());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void findResources_ParallelDirectory() {
+        Storage storage = new Storage("junit_test_dir21");
+        try {
+            storage.getResource("root.txt").write("root", false);
+            for (int i = 0; i < 6; i++) {
+                for (int j = 0; j < 5; j++) {
+                    storage.getResource("dir" + i + "/sub" + j + "/file.txt").write("file", false);
+                    storage.getResource("dir" + i + "/sub" + j + "/deep/file.bin").write("file", false);
+                }
+                storage.getResource("dir" + i + "/file.txt").write("file", false);
+            }
+            for (String glob : new String[]{"**", "**.txt", "*.txt", "dir1/**", "dir*/sub3/*", "**/deep/*.bin"}) {
+                List<String> sequential = storage.findResources(glob, FindOptions.sequential().sorted()).stream().map(Resource::getPath).collect(Collectors.toList());
+                List<String> parallel = storage.findResources(glob, FindOptions.parallel().sorted()).stream().map(Resource::getPath).collect(Collectors.toList());
+                assertFalse(sequential.isEmpty(), glob);
+                assertEquals(sequential, parallel, glob);
+            }
+            assertEquals(67, storage.findResources("**", FindOptions.parallel()).size());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void session_Zip() {
+        Storage storage = new Storage("junit_test3.zip");
+        assertFalse(storage.exists());
+        try {
+            StorageSession session = storage.openSession();
+            try {
+                for (int i = 0; i < 10; i++) {
+                    storage.getResource("entry_" + i + ".txt").write("content_" + i, false);
+                }
+                assertEquals(10, storage.findResources("*.txt").size());
+            } finally {
+                session.close();
+            }
+            storage.close();
+            Storage reopened = new Storage("junit_test3.zip");
+            assertEquals("content_7", reopened.getResource("entry_7.txt").readToString());
+        } finally {
+            storage.delete();
+            assertFalse(storage.exists());
+        }
+    }
+
+    @Test
+    public void readAll_Directory() {
+        readAllTest("junit_test_dir22");
+    }
+
+    @Test
+    public void readAll_Zip() {
+        readAllTest("junit_test22.zip");
+    }
+
+    @Test
+    public void watch_Directory() throws Exception {
+        Storage storage = new Storage("junit_test_dir23");
+        try {
+            storage.getResource("dir/a.txt").write("a", false);
+            List<String> changes = new CopyOnWriteArrayList<>();
+            StorageWatch watch = storage.watch("dir/**.txt", (resource, change) -> changes.add(change + " " + resource.getPath()));
+            try {
+                storage.getResource("dir/sub/b.txt").write("b", false);
+                storage.getResource("dir/a.txt").write("aa", false);
+                storage.getResource("dir/c.bin").write("c", false);
+                waitFor(() -> changes.size() >= 2);
+                assertTrue(changes.contains("CREATED dir/sub/b.txt"));
+                assertTrue(changes.contains("MODIFIED dir/a.txt"));
+                storage.getResource("dir/sub").delete();
+                waitFor(() -> changes.size() >= 3);
+                assertEquals("DELETED dir/sub/b.txt", changes.get(2));
+            } finally {
+                watch.close();
+            }
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void readOnly_Zip() throws IOException {
+        Storage storage = new Storage("junit_test11.zip");
+        try {
+            storage.getResource("first/john.txt").write("john", false);
+            storage.getResource("first/deep/bob.txt").write("bob", false);
+            storage.getResource("alice.txt").write("alice", false);
+            storage.setReadOnly(true);
+            assertFalse(ZipFileSystemPool.isMounted(storage.getPath()));
+
+            assertTrue(storage.getResource("first/deep/bob.txt").exists());
+            assertTrue(storage.getResource("first/deep").exists());
+            assertFalse(storage.getResource("first/deep/alice.txt").exists());
+            assertEquals(4, storage.getResource("first/john.txt").size());
+            assertEquals("alice", storage.getResource("alice.txt").readToString());
+            assertEquals("bob", storage.getResource("first/deep/bob.txt").readFromInputStream(
+                    inputStream -> new BufferedReader(new InputStreamReader(inputStream)).readLine()));
+            assertTrue(storage.getResource("first").attributes().isDirectory());
+            assertEquals(Arrays.asList("first/deep/bob.txt", "first/john.txt"),
+                    storage.findResources("first/**", FindOptions.sequential().sorted()).stream().map(Resource::getPath).collect(Collectors.toList()));
+            assertThrows(StorageException.class, () -> storage.getResource("missing.txt").readToBytes());
+            assertThrows(StorageException.class, () -> storage.getResource("alice.txt").write("eve", false));
+            assertThrows(StorageException.class, () -> storage.getResource("alice.txt").writeDeferred("eve"));
+            try (Stream<Resource> stream = storage.streamResources("**/*.txt")) {
+                assertEquals(2, stream.count());
+            }
+            assertEquals("first/deep/bob.txt", storage.findResource("**/bob.txt").getPath());
+            assertNull(storage.findResource("**/eve.txt"));
+            assertFalse(ZipFileSystemPool.isMounted(storage.getPath()));
+
+            storage.setReadOnly(false);
+            storage.getResource("alice.txt").write("eve", false);
+            assertEquals("eve", storage.getResource("alice.txt").readToString());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void readOnly_ZipInterruptedReader() {
+        Storage storage = new Storage("junit_test27.zip");
+        try {
+            byte[] content = new byte[256 * 1024];
+            new Random(1).nextBytes(content); //stream reads the channel more times
+            storage.getResource("random.bin").write(content, false);
+            storage.getResource("dir/bob.txt").write("bob", false);
+            storage.setReadOnly(true);
+            byte[] read = storage.getResource("random.bin").readFromInputStream(inputStream -> {
+                byte[] first = inputStream.readNBytes(1024);
+                Thread.currentThread().interrupt();
+                try {
+                    assertThrows(StorageException.class, () -> storage.getResource("dir/bob.txt").readToString()); //closes shared channel
+                } finally {
+                    Thread.interrupted();
+                }
+                byte[] rest = inputStream.readAllBytes(); //open stream of other reader continues
+                byte[] all = Arrays.copyOf(first, first.length + rest.length);
+                System.arraycopy(rest, 0, all, first.length, rest.length);
+                return all;
+            });
+            assertTrue(Arrays.equals(content, read));
+            assertEquals("bob", storage.getResource("dir/bob.txt").readToString());
+            storage.setReadOnly(false);
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void concurrentWrites_Directory() throws Exception {
+        concurrentWritesTest("junit_test_dir24");
+    }
+
+    @Test
+    public void concurrentWrites_Zip() throws Exception {
+        concurrentWritesTest("junit_test24.zip");
+    }
+
+    private void concurrentWritesTest(String path) throws Exception {
+        Storage first = new Storage(path);
+        Storage second = new Storage(path);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Storage storage = i % 2 == 0 ? first : second;
+                String name = "thread" + i + ".txt";
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 25; j++) {
+                        storage.getResource("log.txt").write("x", true);
+                    }
+                    storage.getResource(name).write(name, false);
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            first.close();
+            assertEquals(100, second.getResource("log.txt").readToString().length());
+            assertEquals(5, second.findResources("*.txt").size());
+        } finally {
+            executor.shutdown();
+            first.delete();
+        }
+    }
+
+    @Test
+    public void batch_Directory() {
+        batchTest("junit_test_dir15");
+    }
+
+    @Test
+    public void batch_Zip() {
+        batchTest("junit_test15.zip");
+    }
+
+    private void batchTest(String path) {
+        Storage storage = new Storage(path);
+        try {
+            storage.getResource("old.txt").write("old", false);
+            storage.getResource("log.txt").write("a", false);
+            storage.batch(batch -> batch
+                    .write("first.txt", "first", false)
+                    .write("dir/second.txt", "second", false)
+                    .write("log.txt", "b", true)
+                    .delete("old.txt"));
+            assertEquals("first", storage.getResource("first.txt").readToString());
+            assertEquals("second", storage.getResource("dir/second.txt").readToString());
+            assertEquals("ab", storage.getResource("log.txt").readToString());
+            assertFalse(storage.getResource("old.txt").exists());
+
+            assertThrows(StorageException.class, () -> storage.batch(batch -> {
+                batch.write("third.txt", "third", false).delete("first.txt");
+                throw new IOException("processor failed");
+            }));
+            assertFalse(storage.getResource("third.txt").exists());
+            assertTrue(storage.getResource("first.txt").exists());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void batch_ConcurrentOverlapping_Directory() throws Exception {
+        Storage storage = new Storage("junit_test_dir25");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String[] paths : new String[][]{{"a.txt", "b.txt", "c.txt"}, {"c.txt", "b.txt", "a.txt"}}) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        storage.batch(batch -> {
+                            for (String path : paths) {
+                                batch.write(path, "x", true).write(path, "y", true); //same resource twice
+                            }
+                        });
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+            assertEquals(400, storage.getResource("b.txt").size());
+            ResourceLocks.Lock lock = ResourceLocks.get(storage.getPath().resolve("a.txt"));
+            lock.lock();
+            try {
+                storage.getResource("a.txt").write("reentrant", false); //same stripe in the same thread
+            } finally {
+                lock.unlock();
+            }
+            assertEquals("reentrant", storage.getResource("a.txt").readToString());
+        } finally {
+            executor.shutdownNow();
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void batch_FailedMutation_Directory() {
+        Storage storage = new Storage("junit_test_dir16");
+        try {
+            storage.getResource("dir/file.txt").write("file", false);
+            assertThrows(StorageException.class, () -> storage.batch(batch -> batch
+                    .write("first.txt", "first", false)
+                    .write("dir", "directory can't be overwritten", false)
+                    .write("third.txt", "third", false)));
+            assertTrue(storage.getResource("first.txt").exists()); //preceding mutation stays applied
+            assertFalse(storage.getResource("third.txt").exists());
+        } finally {
+            storage.delete();
+        }
+    }
+
+    @Test
+    public void copyTo_ZipToZip() {
+        copyToTest("junit_test6_source.zip", "junit_test6_target.zip");
+    }
+
+    @Test
+    public void copyTo_DirectoryToDirectory() {
+        copyToTest("junit_test_dir6_source", "junit_test_dir6_target");
+    }
+
+    @Test
+    public void copyTo_ZipKeepsEntryMetadata() throws IOException {
+        Storage source = new Storage("junit_test28_source.zip");
+        Storage target = new Storage("junit_test28_target.zip");
+        try {
+            FileTime modified = FileTime.fromMillis(1500000001000L);
+            try (FileSystem zip = FileSystems.newFileSystem(source.getPath(), Map.of("create", "true", "enablePosixFileAttributes", "true"))) {
+                Path john = zip.getPath("first/john.txt");
+                Files.createDirectories(john.getParent());
+                Files.writeString(john, "john");
+                Files.setPosixFilePermissions(john, PosixFilePermissions.fromString("rwxr-x---"));
+                Files.getFileAttributeView(john, BasicFileAttributeView.class).setTimes(modified, modified, modified);
+            }
+            target.getResource("keep.txt").write("keep", false);
+
+            source.copyTo(target, "first/**");
+            source.getResource("first/john.txt").copyTo(target.getResource("second/john.txt"));
+
+            assertEquals("john", target.getResource("first/john.txt").readToString());
+            assertEquals("john", target.getResource("second/john.txt").readToString());
+            try (FileChannel channel = FileChannel.open(target.getPath())) {
+                ZipCentralDirectory directory = ZipCentralDirectory.read(channel);
+                for (String name : Arrays.asList("first/john.txt", "second/john.txt")) {
+                    ZipCentralDirectory.Entry entry = directory.getEntry(name);
+                    assertEquals(0750, entry.externalAttributes >>> 16 & 0777);
+                    assertEquals(3, entry.versionMadeBy >> 8);
+                    assertFalse(entry.hasDataDescriptor());
+                    assertTrue(entry.extra.length > 0);
+                }
+            }
+            try (ZipFile zip = new ZipFile(target.getPath().toFile())) {
+                assertEquals(modified, zip.getEntry("first/john.txt").getLastModifiedTime());
+                assertEquals(modified, zip.getEntry("second/john.txt").getLastModifiedTime());
+            }
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void copyTo_ZipSyncedByWriteOptions() throws IOException {
+        Storage source = new Storage("junit_test_dir27");
+        Storage target = new Storage("junit_test29.zip");
+        try {
+            target.setZipIdleTimeoutInMilliseconds(60000);
+            target.setWriteOptions(WriteOptions.durability(Durability.FLUSH));
+            source.getResource("first/john.txt").write("john", false);
+            source.getResource("first/bob.txt").write("bob", false);
+
+            source.copyTo(target, "first/**");
+            try (ZipFile zip = new ZipFile(target.getPath().toFile())) {
+                assertNotNull(zip.getEntry("first/john.txt"));
+                assertNotNull(zip.getEntry("first/bob.txt"));
+            }
+
+            target.getResource("first/john.txt").copyTo(target.getResource("second/john.txt"));
+            try (ZipFile zip = new ZipFile(target.getPath().toFile())) {
+                assertNotNull(zip.getEntry("second/john.txt"));
+            }
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void zipEviction_FailureThrownByNextOperation() throws IOException, InterruptedException {
+        Path directory = Paths.get("junit_test_dir31");
+        Storage storage = new Storage("junit_test_dir31/evicted.zip");
+        Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
+        List<Throwable> reported = new CopyOnWriteArrayList<>();
+        Thread.setDefaultUncaughtExceptionHandler((thread, t) -> reported.add(t));
+        try {
+            storage.setZipIdleTimeoutInMilliseconds(50);
+            storage.getResource("john.txt").write("john", false);
+            Files.deleteIfExists(storage.getPath());
+            Files.delete(directory); //archive can't be written after idle timeout
+            waitFor(() -> !reported.isEmpty());
+            assertEquals(1, reported.size());
+            assertTrue(reported.get(0) instanceof StorageException);
+
+            StorageException failure = assertThrows(StorageException.class, () -> storage.getResource("bob.txt").write("bob", false));
+            assertEquals(reported.get(0), failure.getCause());
+            storage.getResource("bob.txt").write("bob", false);
+            assertFalse(storage.getResource("john.txt").exists());
+            assertEquals("bob", storage.getResource("bob.txt").readToString());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(defaultHandler);
+            storage.delete();
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void packTo_DirectoryToZip() {
+        Storage source = new Storage("junit_test_dir9_source");
+        Storage target = new Storage("junit_test9_target.zip");
+        try {
+            source.getResource("first/john.txt").write("john", false);
+            source.getResource("first/bob.txt").write("bob", false);
+            source.getResource("second/alice.txt").write(String.join("", Collections.nCopies(100, "alice")), false);
+            target.getResource("old.txt").write("old", false);
+
+            assertEquals(0, source.packTo(target, "**", PackOptions.defaults()));
+            assertEquals(Arrays.asList("first/bob.txt", "first/john.txt", "second/alice.txt"),
+                    target.findResources("**", FindOptions.sequential().sorted()).stream().map(Resource::getPath).collect(Collectors.toList()));
+            assertEquals(String.join("", Collections.nCopies(100, "alice")), target.getResource("second/alice.txt").readToString());
+
+            source.getResource("first/john.txt").write("johnny", false);
+            assertEquals(2, source.packTo(target, "**", PackOptions.defaults().concurrency(1)));
+            assertEquals("johnny", target.getResource("first/john.txt").readToString());
+
+            source.getResource("first/bob.txt").write("rob", false);
+            assertEquals(2, source.packTo(target, "**", PackOptions.defaults().verifyContent()));
+            assertEquals("rob", target.getResource("first/bob.txt").readToString());
+            assertEquals("johnny", target.getResource("first/john.txt").readToString());
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void packTo_LargeFilesDeflatedThroughTempFile() throws IOException {
+        Storage source = new Storage("junit_test_dir32");
+        Storage target = new Storage("junit_test32.zip");
+        try {
+            String text = String.join("\n", Collections.nCopies(200000, "line of large text file"));
+            byte[] random = new byte[ZipPacker.IN_MEMORY_LIMIT + 1000];
+            new Random(32).nextBytes(random);
+            source.getResource("text.txt").write(text, false);
+            source.getResource("random.bin").write(random, false);
+
+            assertEquals(0, source.packTo(target, "**", PackOptions.defaults()));
+            try (ZipFile zip = new ZipFile(target.getPath().toFile())) {
+                assertEquals(ZipEntry.DEFLATED, zip.getEntry("text.txt").getMethod());
+                assertEquals(ZipEntry.STORED, zip.getEntry("random.bin").getMethod());
+            }
+            assertEquals(text, target.getResource("text.txt").readToString());
+            assertArrayEquals(random, target.getResource("random.bin").readToBytes());
+            try (Stream<Path> files = Files.list(target.getPath().toAbsolutePath().getParent())) {
+                assertFalse(files.anyMatch(file -> file.getFileName().toString().endsWith(".spill")));
+            }
+
+            assertEquals(2, source.packTo(target, "**", PackOptions.defaults().verifyContent()));
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void extractTo_ZipToDirectory() {
+        Storage source = new Storage("junit_test10_source.zip");
+        Storage target = new Storage("junit_test_dir10_target");
+        try {
+            String big = String.join("\n", Collections.nCopies(20000, "line of big file"));
+            source.getResource("first/john.txt").write("john", false);
+            source.getResource("first/big.txt").write(big, false);
+            source.getResource("second/alice.txt").write("alice", false);
+            target.getResource("first/john.txt").write("old john", false);
+
+            List<Resource> extracted = source.extractTo(target, "first/**", 2);
+            assertEquals(2, extracted.size());
+            assertTrue(extracted.stream().allMatch(resource -> resource.getStorage().equals(target)));
+            assertEquals(big, extracted.stream().filter(resource -> resource.getPath().endsWith("big.txt")).findFirst().get().readToString());
+            assertEquals("john", target.getResource("first/john.txt").readToString());
+            assertEquals(big, target.getResource("first/big.txt").readToString());
+            assertFalse(target.getResource("second/alice.txt").exists());
+
+            target.packTo(source, "**", PackOptions.defaults().level(0));
+            target.getResource("first").delete();
+            assertEquals(2, source.extractTo(target, "**").size());
+            assertEquals(big, target.getResource("first/big.txt").readToString());
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
+    private void copyToTest(String sourcePath, String targetPath) {
+        Storage source = new Storage(sourcePath);
+        Storage target = new Storage(targetPath);
+        try {
+            source.getResource("first/john.txt").write("john", false);
+            source.getResource("first/bob.txt").write("bob", false);
+            source.getResource("second/alice.txt").write("alice", false);
+            target.getResource("first/bob.txt").write("old bob", false);
+            target.getResource("keep.txt").write("keep", false);
+
+            source.copyTo(target, "first/**");
+
+            assertEquals("john", target.getResource("first/john.txt").readToString());
+            assertEquals("bob", target.getResource("first/bob.txt").readToString());
+            assertEquals("keep", target.getResource("keep.txt").readToString());
+            assertFalse(target.getResource("second/alice.txt").exists());
+
+            source.getResource("second/alice.txt").copyTo(target.getResource("third/alice.txt"));
+            assertEquals("alice", target.getResource("third/alice.txt").readToString());
+        } finally {
+            source.delete();
+            target.delete();
+        }
+    }
+
     private void findResourcesTest(String path) {
+        findResourcesTest(path, false);
+    }
+
+    private void findResourcesTest(String path, boolean indexed) {
         Storage storage = new Storage(path);
+        storage.setIndexed(indexed);
         assertFalse(storage.exists());
         try {
             storage.getResource("john.txt").write("content", false);
@@ -48,6 +607,10 @@ public class StorageTest {
             assertEquals(3, storage.findResources("**john.txt").size()); //john.txt, first/john.txt, second/john.txt
             assertEquals(6, storage.findResources("**o*.txt").size()); //john.txt, first/john.txt, second/john.txt, bob.txt, first/bob.txt, second/bob.txt
 
+            try (Stream<Resource> stream = storage.streamResources("**o*.txt")) {
+                assertEquals(6, stream.count());
+            }
+
             assertNotNull(storage.findResource("alice.txt"));
 
             try {
@@ -104,4 +667,28 @@ public class StorageTest {
             assertFalse(storage.exists());
         }
     }
+
+    private void readAllTest(String path) {
+        Storage storage = new Storage(path);
+        try {
+            storage.batch(batch -> {
+                for (int i = 0; i < 100; i++) {
+                    batch.write("dir/file" + i + ".txt", "content_" + i, false);
+                }
+            });
+            Map<Resource, byte[]> contents = storage.readAll("dir/*.txt", 4);
+            assertEquals(100, contents.size());
+            contents.forEach((resource, content) -> assertEquals(resource.readToString(), new String(content)));
+            assertEquals("content_7", new String(contents.get(storage.getResource("dir/file7.txt"))));
+        } finally {
+            storage.delete();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
 }